@@ -143,4 +143,28 @@ interface WorldModule {
      */
     fun placeSchematics(tag: String, path: String, biomes: Boolean, entities: Boolean, ignoreAir: Boolean)
 
+    /**
+     * Keep the chunks pointed by a [coordinate tag][tag] loaded, until they're [unpinned][unpinChunks].
+     *
+     * Chunks of coordinate tags are loaded before the game starts,
+     * but they are let go shortly after players have spawned.
+     *
+     * @param tag Name of the coordinate tag.
+     * @throws IllegalArgumentException is thrown if [tag] doesn't exist.
+     * @throws MapNotFound is thrown if world is not generated yet.
+     */
+    fun pinChunks(tag: String)
+
+    /**
+     * Let go the chunks pinned by [pinChunks].
+     *
+     * @param tag Name of the coordinate tag.
+     */
+    fun unpinChunks(tag: String)
+
+    /**
+     * Get the number of chunks which this game keeps loaded.
+     */
+    fun getHeldChunkCount(): Int
+
 }
\ No newline at end of file
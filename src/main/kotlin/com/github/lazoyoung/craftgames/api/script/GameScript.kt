@@ -3,7 +3,6 @@ package com.github.lazoyoung.craftgames.api.script
 import com.github.lazoyoung.craftgames.impl.Main
 import com.github.lazoyoung.craftgames.impl.game.module.ModuleService
 import java.io.*
-import java.nio.file.Files
 import java.nio.file.Path
 import java.text.SimpleDateFormat
 import java.time.Instant
@@ -14,7 +13,7 @@ abstract class GameScript(
         internal val file: File,
         private val regex: Regex
 ) {
-    var debug = Main.getConfig()?.getBoolean("script.debug", false) ?: false
+    var debug = Main.getConfig().scriptDebug
     protected val name: String = file.nameWithoutExtension
     protected val logRoot: File = requireNotNull(file.parentFile).resolve("log")
 
@@ -32,24 +31,24 @@ abstract class GameScript(
      * Compiles the script to achieve efficient executions in the future.
      */
     open fun parse() {
-        val tmpFile = Files.createTempFile(file.name, null)
-        val reader = file.copyTo(tmpFile.toFile(), overwrite = true).bufferedReader(Main.charset)
-        val writer = file.bufferedWriter(Main.charset)
-        var line = reader.readLine()
-
-        // Get rid of invisible characters
-        while (line != null) {
-            val replaced = line.replace(Regex("\\p{Cf}"), "")
-            line = reader.readLine()
-
-            writer.write(replaced)
-            writer.newLine()
-            writer.flush()
+        readSource()
+    }
+
+    /**
+     * Read the source code of this script, getting rid of invisible characters.
+     * The file is rewritten only if such characters are found.
+     *
+     * @return The normalized source code.
+     */
+    protected fun readSource(): String {
+        val source = file.readText(Main.charset)
+        val normalized = source.replace(Regex("\\p{Cf}"), "")
+
+        if (normalized != source) {
+            file.writeText(normalized, Main.charset)
         }
 
-        reader.close()
-        writer.close()
-        Files.delete(tmpFile)
+        return normalized
     }
 
     /**
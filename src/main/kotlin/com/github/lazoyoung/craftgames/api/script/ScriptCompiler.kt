@@ -29,7 +29,7 @@ enum class ScriptCompiler {
          */
         fun getDefault(): ScriptCompiler {
             try {
-                val def = Main.getConfig()?.getString("script.compiler", "STATIC")
+                val def = Main.getConfig().scriptCompiler
 
                 return valueOf(checkNotNull(def).toUpperCase())
             } catch (e: Throwable) {
@@ -38,9 +38,7 @@ class ScriptFactory {
         fun get(path: Path, mode: ScriptCompiler): GameScript {
             val file = path.toFile()
             val engine: Engine
-            val engineName = Main.getConfig()
-                    ?.getString("script.engine", "Groovy")?.toUpperCase()
-                    ?: "GROOVY"
+            val engineName = Main.getConfig().scriptEngine
 
             require(Files.isRegularFile(path)) {
                 "File not found: $path"
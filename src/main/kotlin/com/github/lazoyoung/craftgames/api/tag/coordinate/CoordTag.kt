@@ -4,6 +4,7 @@ import com.github.lazoyoung.craftgames.api.module.WorldModule
 import com.github.lazoyoung.craftgames.impl.game.GameMap
 import com.github.lazoyoung.craftgames.impl.tag.TagRegistry
 import com.github.lazoyoung.craftgames.impl.tag.coordinate.CoordCaptureService
+import org.bukkit.configuration.ConfigurationSection
 import java.util.*
 import kotlin.collections.ArrayList
 
@@ -46,8 +47,8 @@ class CoordTag internal constructor(
     internal fun suppress(suppress: Boolean) {
         check(!removed)
 
-        registry.ctagConfig.set(name.plus(".suppress"), suppress)
-        registry.reloadCoordTags(this)
+        this.suppress = suppress
+        registry.markDirty()
     }
 
     /**
@@ -75,14 +76,28 @@ class CoordTag internal constructor(
 
     /**
      * Remove the tag and the whole captures in it.
-     * You will have to manually save the config to disk.
+     * [TagRegistry.saveToDisk] should be used to save changes.
      *
      * @throws IllegalStateException is raised if [removed] is true.
      */
     internal fun remove() {
         check(!removed)
-        registry.ctagConfig.set(name, null)
-        registry.reloadCoordTags(this)
+        registry.unregister(this)
+        removed = true
+    }
+
+    /**
+     * Append the [capture] to this [CoordTag], which is indexed after the others in the same map.
+     * [TagRegistry.saveToDisk] should be used to save changes.
+     *
+     * @throws IllegalStateException is raised if [removed] is true.
+     */
+    internal fun addCapture(capture: CoordCaptureService) {
+        check(!removed)
+
+        capture.index = captures.count { it.mapID == capture.mapID }
+        captures.add(capture)
+        registry.markDirty()
     }
 
     /**
@@ -96,16 +111,41 @@ class CoordTag internal constructor(
         requireNotNull(capture.mapID)
         check(!removed)
 
-        try {
-            val key = registry.getCoordCaptureStreamKey(name, capture.mapID)
-            val stream = registry.getCoordCaptureStream(name, capture.mapID)
-                    .toMutableList()
+        val index = requireNotNull(capture.index)
+        val target = captures.firstOrNull { it.mapID == capture.mapID && it.index == index }
+                ?: throw IllegalArgumentException("Capture $name/$index does not exist.")
+
+        captures.removeIf { it === target }
+
+        // Shift the captures behind it, just as they would be indexed on next load.
+        captures.filter { it.mapID == capture.mapID && (it.index ?: -1) > index }.forEach {
+            it.index = it.index!! - 1
+        }
+        registry.markDirty()
+    }
+
+    /**
+     * Write this tag into [config] of coordinate tags.
+     */
+    internal fun write(config: ConfigurationSection) {
+        val mapIDs = LinkedHashSet<String>()
+
+        config.set(name.plus(".mode"), mode.label)
+
+        if (suppress || config.contains(name.plus(".suppress"))) {
+            config.set(name.plus(".suppress"), suppress)
+        }
+
+        // Maps whose captures are all removed must be emptied as well.
+        config.getConfigurationSection(name.plus(".captures"))?.getKeys(false)?.let { mapIDs.addAll(it) }
+        captures.mapTo(mapIDs) { it.mapID }
+
+        for (mapID in mapIDs) {
+            val stream = captures.filter { it.mapID == mapID }
+                    .sortedBy { it.index }
+                    .map { it.serialize() }
 
-            stream.removeAt(capture.index!!)
-            registry.ctagConfig.set(key, stream)
-            registry.reloadCoordTags(this)
-        } catch (e: NullPointerException) {
-            throw IllegalArgumentException(e)
+            config.set(registry.getCoordCaptureStreamKey(name, mapID), stream)
         }
     }
 
@@ -2,6 +2,11 @@ package com.github.lazoyoung.craftgames.impl
 
 import com.github.lazoyoung.craftgames.impl.command.*
 import com.github.lazoyoung.craftgames.impl.game.Game
+import com.github.lazoyoung.craftgames.impl.game.GameIDAllocator
+import com.github.lazoyoung.craftgames.impl.game.GameMap
+import com.github.lazoyoung.craftgames.impl.game.GamePool
+import com.github.lazoyoung.craftgames.impl.game.TemplateSync
+import com.github.lazoyoung.craftgames.impl.game.WorldTrash
 import com.github.lazoyoung.craftgames.impl.listener.MessangerListener
 import com.github.lazoyoung.craftgames.impl.listener.ScriptListener
 import com.github.lazoyoung.craftgames.impl.listener.ServerListener
@@ -10,7 +15,6 @@ import com.github.lazoyoung.craftgames.impl.util.FileUtil
 import org.bukkit.Bukkit
 import org.bukkit.command.CommandExecutor
 import org.bukkit.configuration.file.FileConfiguration
-import org.bukkit.configuration.file.YamlConfiguration
 import org.bukkit.event.HandlerList
 import org.bukkit.plugin.java.JavaPlugin
 import java.io.File
@@ -38,19 +42,16 @@ class Main : JavaPlugin(), CommandExecutor {
         lateinit var config: FileConfiguration
             private set
 
-        internal fun getConfig(): FileConfiguration? {
-            var config: FileConfiguration? = null
+        @Volatile
+        private var snapshot: PluginConfig? = null
 
-            try {
-                val file = pluginFolder.resolve("config.yml")
-                val reader = file.bufferedReader(charset)
-
-                config = YamlConfiguration.loadConfiguration(reader)
-            } catch (e: Exception) {
-                e.printStackTrace()
-            }
-
-            return config
+        /**
+         * Returns the latest snapshot of config.yml.
+         *
+         * @throws IllegalStateException is thrown if plugin is not enabled yet.
+         */
+        internal fun getConfig(): PluginConfig {
+            return checkNotNull(snapshot) { "config.yml is not loaded yet." }
         }
     }
 
@@ -78,6 +79,10 @@ class Main : JavaPlugin(), CommandExecutor {
 
         loadConfig()
         loadAsset()
+        WorldTrash.load()
+        GameIDAllocator.load()
+        GameMap.purgeStaging()
+        TemplateSync.purge()
         DependencyUtil.load(server.pluginManager)
         infoCmd.setExecutor(infoExecutor)
         gameCmd.setExecutor(gameExecutor)
@@ -101,18 +106,33 @@ class Main : JavaPlugin(), CommandExecutor {
         manager.registerEvents(ScriptListener(), this)
         messenger.registerOutgoingPluginChannel(this, "BungeeCord")
         messenger.registerIncomingPluginChannel(this, "BungeeCord", MessangerListener())
+
+        // Pools are filled once the worlds are loaded.
+        server.scheduler.runTask(this, Runnable { GamePool.load() })
     }
 
     override fun onDisable() {
         // Close games
-        Game.find().forEach { it.forceStop(async = false, error = false) }
+        Game.find().forEach { it.forceStop(error = false) }
+        GameIDAllocator.save(async = false)
+        FileUtil.shutdown()
+        WorldTrash.shutdown()
         HandlerList.unregisterAll(this)
         server.scheduler.cancelTasks(this)
     }
 
+    /**
+     * Reload config.yml from disk and replace the [snapshot][getConfig] with the new one.
+     */
+    override fun reloadConfig() {
+        super.reloadConfig()
+        snapshot = PluginConfig.load(config)
+    }
+
     private fun loadConfig() {
         saveDefaultConfig()
         config.options().copyDefaults(true)
+        snapshot = PluginConfig.load(config)
         pluginFolder = dataFolder
         Companion.dataFolder = pluginFolder.resolve("_data")
 
@@ -154,7 +174,7 @@ class Main : JavaPlugin(), CommandExecutor {
                 FileUtil.cloneFileTree(source, target, StandardCopyOption.REPLACE_EXISTING).handle {
                     result, t ->
 
-                    if (result) {
+                    if (t == null && result) {
                         logger.info("Sample files have been installed!")
                     } else {
                         t?.printStackTrace()
@@ -162,7 +182,7 @@ class Main : JavaPlugin(), CommandExecutor {
                     }
 
                     config.set("install-sample", false)
-                }
+                }.join()
             } catch (e: SecurityException) {
                 e.printStackTrace()
                 logger.severe("Access denied! Unable to install sample files.")
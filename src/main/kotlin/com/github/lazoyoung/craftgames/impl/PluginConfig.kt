@@ -0,0 +1,138 @@
+package com.github.lazoyoung.craftgames.impl
+
+import org.bukkit.Material
+import org.bukkit.configuration.ConfigurationSection
+import org.bukkit.configuration.file.FileConfiguration
+import java.util.*
+import kotlin.collections.HashMap
+import kotlin.collections.LinkedHashMap
+
+/**
+ * Immutable snapshot of config.yml.
+ *
+ * A snapshot is built once at startup and replaced as a whole by [Main.reloadConfig].
+ * Values are never re-read from disk, so it's cheap to access from hot paths.
+ */
+class PluginConfig private constructor(config: FileConfiguration) {
+
+    class ExitFallback internal constructor(
+            val world: String,
+            val x: Double,
+            val y: Double,
+            val z: Double,
+            val yaw: Float,
+            val pitch: Float
+    )
+
+    class PoolSetting internal constructor(
+            /** Number of instances to keep generated in advance **/
+            val minReady: Int,
+            /** Pool stops generating once the game has this many live instances. (0 for no limit) **/
+            val max: Int
+    )
+
+    /** Key: Game name, Value: Path to layout.yml **/
+    val games: Map<String, String>
+
+    val gameNames: List<String>
+
+    /** Key: Game name, Value: Pool setting **/
+    val pools: Map<String, PoolSetting>
+
+    val datapackFormatVersion: String? = config.getString("datapack.format-version")
+
+    val datapackInternalName: String = config.getString("datapack.internal-pack-name") ?: "craftgames"
+
+    /** The prefix of generated world's directory name. **/
+    val worldLabel: String? = config.getString("world-label")
+
+    val spawnInvincible: Long = config.getLong("spawn-invincible", 60L)
+
+    val recordJoinLocation: Boolean = config.getBoolean("exit-policy.record-join-location", true)
+
+    val exitFallback: ExitFallback?
+
+    val scriptEngine: String = config.getString("script.engine", "Groovy")!!.toUpperCase()
+
+    val scriptDebug: Boolean = config.getBoolean("script.debug", false)
+
+    val scriptCompiler: String? = config.getString("script.compiler", "STATIC")
+
+    val areaParticleResolution: Int = config.getInt("rendering.capture-display.area-particles.resolution", 2)
+
+    val areaParticleDistance: Int = config.getInt("rendering.capture-display.area-particles.distance", 30)
+
+    /** Key: Material to be replaced, Value: New material **/
+    val fallingBlockReplacement: Map<Material, Material>
+
+    /** Whether game worlds share files with the map template by reflink instead of copying them. **/
+    val shareMapFiles: Boolean = config.getBoolean("optimization.share-map-files", false)
+
+    /** Map templates are kept in memory up to this many bytes. (0 to disable) **/
+    val templateCacheBudget: Long = config.getLong("optimization.template-cache-mb", 0L) * 1048576L
+
+    /** Number of files deleted per second when emptying trash. (0 for no limit) **/
+    val trashDeleteRate: Int = config.getInt("optimization.trash-delete-rate", 2000)
+
+    val schematicThrottle: Int = config.getInt("optimization.schematic-throttle", 10000)
+
+    val mobCapacity: Int = config.getInt("optimization.mob-capacity", 100)
+
+    val mobThrottle: Int = config.getInt("optimization.safezone-calculation.mob-throttle", 3)
+
+    val playerThrottle: Int = config.getInt("optimization.safezone-calculation.player-throttle", 10)
+
+    init {
+        val games = LinkedHashMap<String, String>()
+        val pools = HashMap<String, PoolSetting>()
+        val replacement = EnumMap<Material, Material>(Material::class.java)
+        val fallback = config.getConfigurationSection("exit-policy.fallback")
+        val replaceSection = config.getConfigurationSection(
+                "rendering.capture-display.falling-block.material-replacement"
+        )
+
+        config.getConfigurationSection("games")?.let { section ->
+            for (name in section.getKeys(false)) {
+                games[name] = section.getString("$name.layout") ?: continue
+
+                val minReady = section.getInt("$name.pool.min-ready", 0)
+
+                if (minReady > 0) {
+                    pools[name] = PoolSetting(minReady, section.getInt("$name.pool.max", 0))
+                }
+            }
+        }
+
+        replaceSection?.getKeys(false)?.forEach {
+            val from = Material.getMaterial(it) ?: return@forEach
+            val to = Material.getMaterial(replaceSection.getString(it) ?: "") ?: return@forEach
+
+            replacement[from] = to
+        }
+
+        this.games = Collections.unmodifiableMap(games)
+        this.gameNames = Collections.unmodifiableList(games.keys.toList())
+        this.pools = Collections.unmodifiableMap(pools)
+        this.fallingBlockReplacement = Collections.unmodifiableMap(replacement)
+        this.exitFallback = fallback?.let(::readFallback)
+    }
+
+    companion object {
+        internal fun load(config: FileConfiguration): PluginConfig {
+            return PluginConfig(config)
+        }
+
+        private fun readFallback(section: ConfigurationSection): ExitFallback? {
+            val world = section.getString("world") ?: return null
+
+            return ExitFallback(
+                    world = world,
+                    x = section.getDouble("x"),
+                    y = section.getDouble("y"),
+                    z = section.getDouble("z"),
+                    yaw = section.getDouble("yaw").toFloat(),
+                    pitch = section.getDouble("pitch").toFloat()
+            )
+        }
+    }
+}
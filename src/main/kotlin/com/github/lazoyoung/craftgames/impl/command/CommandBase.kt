@@ -24,10 +24,7 @@ abstract class CommandBase(prefix: String) : TabExecutor {
     fun getGameTitles(query: String): List<String> {
         return getCompletions(
                 query = query,
-                options = Main.getConfig()?.getConfigurationSection("games")
-                        ?.getKeys(false)
-                        ?.toList()
-                        ?: emptyList()
+                options = Main.getConfig().gameNames
         )
     }
 
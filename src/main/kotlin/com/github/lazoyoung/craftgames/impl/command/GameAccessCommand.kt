@@ -4,17 +4,18 @@ import com.github.lazoyoung.craftgames.api.ActionbarTask
 import com.github.lazoyoung.craftgames.impl.exception.GameJoinRejectedException
 import com.github.lazoyoung.craftgames.impl.exception.GameNotFound
 import com.github.lazoyoung.craftgames.impl.game.Game
+import com.github.lazoyoung.craftgames.impl.game.GamePool
+import com.github.lazoyoung.craftgames.impl.game.MatchmakingQueue
 import com.github.lazoyoung.craftgames.impl.game.player.GameEditor
 import com.github.lazoyoung.craftgames.impl.game.player.PlayerData
 import com.github.lazoyoung.craftgames.impl.util.DependencyUtil
-import net.md_5.bungee.api.ChatColor
-import net.md_5.bungee.api.chat.ComponentBuilder
 import net.milkbowl.vault.permission.Permission
 import org.bukkit.Bukkit
 import org.bukkit.command.Command
 import org.bukkit.command.CommandSender
 import org.bukkit.entity.Player
 import java.util.*
+import java.util.concurrent.CancellationException
 
 class GameAccessCommand : CommandBase("CraftGames") {
 
@@ -30,14 +31,14 @@ class GameAccessCommand : CommandBase("CraftGames") {
                     return false
                 }
 
-                val selector = args[0]
+                val players = selectPlayers(sender, args[0])
 
                 when (args.size) {
                     1 -> {
                         val game = PlayerData.get(sender)?.getGame()
 
                         return if (game != null) {
-                            forceJoin(sender, selector, game)
+                            forceJoin(sender, players, game)
                             true
                         } else {
                             sender.sendMessage("$error Please specify the game.")
@@ -47,23 +48,17 @@ class GameAccessCommand : CommandBase("CraftGames") {
                     2 -> {
                         val arg = args.last()
                         val id = arg.toIntOrNull()
-                        var game = if (id != null) {
-                            Game.getByID(id)
+
+                        if (id == null) {
+                            forceQueue(sender, players, arg)
                         } else {
-                            Game.find(arg, false).firstOrNull()
-                        }
+                            val game = Game.getByID(id)
 
-                        if (game != null) {
-                            forceJoin(sender, selector, game)
-                        } else try {
-                            game = Game.openNew(arg, false)
-                            forceJoin(sender, selector, game)
-                            return true
-                        } catch (e: GameNotFound) {
-                            sender.sendMessage("$error No such game exist: $arg")
-                        } catch (e: Exception) {
-                            e.printStackTrace()
-                            sender.sendMessage("$error Error occurred, see console for details.")
+                            if (game != null) {
+                                forceJoin(sender, players, game)
+                            } else {
+                                sender.sendMessage("$error Game not found: $id")
+                            }
                         }
                     }
                     else -> return false
@@ -76,42 +71,20 @@ class GameAccessCommand : CommandBase("CraftGames") {
                 }
 
                 if (args.isEmpty()) {
-                    val game = Game.find(null, false).firstOrNull { it.canJoin(sender) }
+                    // Prefer a game which has a joinable instance. Queue of that game picks the best of them.
+                    val gameName = Game.find(null, false).firstOrNull { !it.standby && it.canJoin(sender) }?.name
+                            ?: GamePool.peekAny(sender)?.name
+                            ?: Game.getGameNames().takeIf { it.isNotEmpty() }?.random()
 
-                    if (game != null) {
-                        game.joinPlayer(sender)
+                    if (gameName != null) {
+                        queue(sender, gameName)
                     } else {
-                        val gameReg = Game.getGameNames()
-
-                        if (gameReg.isEmpty()) {
-                            sender.sendMessage("$error There's no game available.")
-                        } else try {
-                            Game.openNew(gameReg.random(), editMode = false, mapID = null)
-                                    .joinPlayer(sender)
-                        } catch (e: Exception) {
-                            e.printStackTrace()
-                            sender.sendMessage(*ComponentBuilder(e.localizedMessage).color(ChatColor.RED).create())
-                        }
+                        sender.sendMessage("$error There's no game available.")
                     }
                     return true
                 }
 
-                try {
-                    val game = Game.find(args[0], false).firstOrNull { it.canJoin(sender) }
-
-                    if (game == null) {
-                        Game.openNew(args[0], editMode = false, mapID = null)
-                                .joinPlayer(sender)
-                    } else {
-                        game.joinPlayer(sender)
-                    }
-                } catch (e: GameNotFound) {
-                    sender.sendMessage("$error No such game exist: ${args[0]}")
-                } catch (e: Exception) {
-                    e.printStackTrace()
-                    sender.sendMessage("$error Error occurred, see console for details.")
-                    return true
-                }
+                queue(sender, args[0])
             }
             "leave" -> {
                 val player = PlayerData.get(sender)
@@ -120,7 +93,7 @@ class GameAccessCommand : CommandBase("CraftGames") {
                     player is GameEditor -> {
                         val game = player.getGame()
 
-                        if (game.players.size <= 1) {
+                        if (game.roster.size <= 1) {
                             player.saveAndClose()
                         } else {
                             player.leaveGame()
@@ -138,7 +111,24 @@ class GameAccessCommand : CommandBase("CraftGames") {
         return true
     }
 
-    private fun forceJoin(operator: Player, selector: String, game: Game) {
+    private fun queue(player: Player, gameName: String) {
+        try {
+            MatchmakingQueue.get(gameName).enqueue(listOf(player)).whenComplete { _, t ->
+                when (t) {
+                    null, is CancellationException -> return@whenComplete
+                    is GameJoinRejectedException -> t.informPlayer()
+                    else -> {
+                        t.printStackTrace()
+                        player.sendMessage("$error Error occurred, see console for details.")
+                    }
+                }
+            }
+        } catch (e: GameNotFound) {
+            player.sendMessage("$error No such game exist: $gameName")
+        }
+    }
+
+    private fun selectPlayers(operator: Player, selector: String): List<Player> {
         val players = LinkedList<Player>()
 
         if (!selector.contains("@")) {
@@ -197,6 +187,58 @@ class GameAccessCommand : CommandBase("CraftGames") {
             }
         }
 
+        return players
+    }
+
+    /**
+     * Force the [players] to join an instance of [gameName] together, through its [MatchmakingQueue].
+     */
+    private fun forceQueue(operator: Player, players: List<Player>, gameName: String) {
+        val joinPerm = Bukkit.getPluginCommand("join")!!.permission!!
+        val party = ArrayList<Player>()
+        val queue = try {
+            MatchmakingQueue.get(gameName)
+        } catch (e: GameNotFound) {
+            operator.sendMessage("$error No such game exist: $gameName")
+            return
+        }
+
+        for (p in players) {
+            val cause = when {
+                PlayerData.get(p) != null -> GameJoinRejectedException.Cause.PLAYING_OTHER
+                !p.hasPermission(joinPerm) -> GameJoinRejectedException.Cause.NO_PERMISSION
+                else -> null
+            }
+
+            if (cause == null) {
+                party.add(p)
+            } else {
+                operator.sendMessage("$warn ${p.name} was unable to join: ${cause.name}")
+            }
+        }
+
+        if (party.isEmpty()) {
+            return
+        }
+
+        queue.enqueue(party).whenComplete { game, t ->
+            when (t) {
+                null -> {
+                    ActionbarTask(operator, "&aForced &f${party.size} &aplayers to join &f${game.name}&a.").start()
+                }
+                is CancellationException -> return@whenComplete
+                is GameJoinRejectedException -> {
+                    operator.sendMessage("$error ${t.message}")
+                }
+                else -> {
+                    t.printStackTrace()
+                    operator.sendMessage("$error Error occurred, see console for details.")
+                }
+            }
+        }
+    }
+
+    private fun forceJoin(operator: Player, players: List<Player>, game: Game) {
         val blocked = HashMap<String, String>()
         var counter = 0
 
@@ -3,22 +3,29 @@ package com.github.lazoyoung.craftgames.impl.command
 import com.github.lazoyoung.craftgames.api.ActionbarTask
 import com.github.lazoyoung.craftgames.api.script.ScriptCompiler
 import com.github.lazoyoung.craftgames.api.script.ScriptFactory
+import com.github.lazoyoung.craftgames.impl.Main
 import com.github.lazoyoung.craftgames.impl.command.page.Page
 import com.github.lazoyoung.craftgames.impl.command.page.PageBody
 import com.github.lazoyoung.craftgames.impl.exception.GameNotFound
 import com.github.lazoyoung.craftgames.impl.game.Game
 import com.github.lazoyoung.craftgames.impl.game.GameMap
+import com.github.lazoyoung.craftgames.impl.game.MapStore
+import com.github.lazoyoung.craftgames.impl.game.TemplateSync
 import com.github.lazoyoung.craftgames.impl.game.player.GameEditor
 import com.github.lazoyoung.craftgames.impl.game.player.GamePlayer
 import com.github.lazoyoung.craftgames.impl.game.player.PlayerData
 import com.github.lazoyoung.craftgames.impl.game.player.Spectator
+import com.github.lazoyoung.craftgames.impl.util.ArchiveUtil
+import com.github.lazoyoung.craftgames.impl.util.FileUtil
 import net.md_5.bungee.api.ChatColor
 import net.md_5.bungee.api.chat.ComponentBuilder
+import org.bukkit.Bukkit
 import org.bukkit.command.Command
 import org.bukkit.command.CommandSender
 import org.bukkit.entity.Player
 import java.nio.file.Files
 import java.util.*
+import java.util.concurrent.CompletionException
 import java.util.function.Consumer
 import java.util.regex.Pattern
 
@@ -43,6 +50,19 @@ class GameCommand : CommandBase("CraftGames") {
                             "Start editor mode.\n" +
                                     "There you can modify game elements and blocks.",
                             "/game edit "
+                    ),
+                    PageBody.Element(
+                            "\u25cb /game pack (title) [map]",
+                            "Pack map directories into archives.\n" +
+                                    "Packed maps install faster.",
+                            "/game pack "
+                    ),
+                    PageBody.Element(
+                            "\u25cb /game store (title) [map]",
+                            "Move maps into the map store.\n" +
+                                    "Their directories or archives are deleted.\n" +
+                                    "Files shared by maps are stored once.",
+                            "/game store "
                     )
             ),
             PageBody {
@@ -207,7 +227,17 @@ class GameCommand : CommandBase("CraftGames") {
                         return true
                     }
                     null -> try {
-                        GameEditor.start(sender, args[1], args[2])
+                        GameEditor.start(sender, args[1], args[2]).exceptionally { t ->
+                            val cause = (t as? CompletionException)?.cause ?: t
+
+                            if (cause is GameNotFound) {
+                                sender.sendMessage(*ComponentBuilder("Game ${args[1]} does not exist!").color(ChatColor.RED).create())
+                            } else {
+                                sender.sendMessage(*ComponentBuilder("Error occurred! See console for details.").color(ChatColor.RED).create())
+                                cause.printStackTrace()
+                            }
+                            null
+                        }
                     } catch (e: GameNotFound) {
                         sender.sendMessage(*ComponentBuilder("Game ${args[1]} does not exist!").color(ChatColor.RED).create())
                     } catch (e: Exception) {
@@ -237,6 +267,84 @@ class GameCommand : CommandBase("CraftGames") {
                     gameEditor.saveAndClose()
                 }
             }
+            "pack", "store" -> {
+                if (args.size < 2)
+                    return false
+
+                val gameName = args[1]
+                val maps = try {
+                    val registry = GameMap.Registry(gameName)
+
+                    if (args.size > 2) {
+                        listOf(registry.getMap(args[2]) ?: run {
+                            sender.sendMessage("$error Map ${args[2]} does not exist!")
+                            return true
+                        })
+                    } else {
+                        registry.getMaps()
+                    }
+                } catch (e: GameNotFound) {
+                    sender.sendMessage("$error Game $gameName does not exist!")
+                    return true
+                }
+
+                if (Game.find(gameName, true).isNotEmpty()) {
+                    sender.sendMessage("$error $gameName is being edited. Try again later.")
+                    return true
+                }
+
+                Bukkit.getScheduler().runTaskAsynchronously(Main.instance, Runnable {
+                    for (map in maps) {
+                        val result = when {
+                            map.isStored() -> "$warn ${map.id} is already stored."
+                            args[0].equals("pack", true) && map.isPacked() -> "$warn ${map.id} is already packed."
+                            !map.isPacked() && !Files.isDirectory(map.directory) ->
+                                "$warn ${map.id} has no world directory."
+                            args[0].equals("pack", true) -> try {
+                                val count = ArchiveUtil.pack(map.directory, map.archive)
+                                "$info Packed ${map.id} ($count files). " +
+                                        "Directory ${map.directory.fileName} is no longer used."
+                            } catch (e: Exception) {
+                                e.printStackTrace()
+                                "$error Failed to pack ${map.id}. See console for details."
+                            }
+                            map.isPacked() -> try {
+                                // Directory is stale once the map is packed. Store the content of archive instead.
+                                val temp = Files.createTempDirectory(map.directory.parent, ".${map.id}-store-")
+                                val report = try {
+                                    ArchiveUtil.unpack(map.archive, temp)
+                                    MapStore.store(temp, map.index)
+                                } finally {
+                                    FileUtil.deleteFileTree(temp)
+                                }
+
+                                Files.delete(map.archive)
+                                String.format("$info Stored ${map.id} (%d files, %.1f MB written, %.1f MB shared). " +
+                                        "Archive ${map.archive.fileName} is deleted.",
+                                        report.files, report.writtenBytes / 1048576.0, report.sharedBytes / 1048576.0)
+                            } catch (e: Exception) {
+                                e.printStackTrace()
+                                "$error Failed to store ${map.id}. See console for details."
+                            }
+                            else -> try {
+                                val report = MapStore.store(map.directory, map.index)
+
+                                TemplateSync.trash(map.directory)
+                                String.format("$info Stored ${map.id} (%d files, %.1f MB written, %.1f MB shared). " +
+                                        "Directory ${map.directory.fileName} is moved to trash.",
+                                        report.files, report.writtenBytes / 1048576.0, report.sharedBytes / 1048576.0)
+                            } catch (e: Exception) {
+                                e.printStackTrace()
+                                "$error Failed to store ${map.id}. See console for details."
+                            }
+                        }
+
+                        Bukkit.getScheduler().runTask(Main.instance, Runnable {
+                            sender.sendMessage(result)
+                        })
+                    }
+                })
+            }
             "kit" -> {
                 if (sender !is Player) {
                     sender.sendMessage("This cannot be done from console.")
@@ -412,7 +520,7 @@ class GameCommand : CommandBase("CraftGames") {
             return command.aliases
 
         if (args.size == 1)
-            return getCompletions(args[0], "help", "start", "stop", "edit", "save", "kit", "script")
+            return getCompletions(args[0], "help", "start", "stop", "edit", "pack", "store", "save", "kit", "script")
 
         when (args[0].toLowerCase()) {
             "start" -> {
@@ -430,7 +538,7 @@ class GameCommand : CommandBase("CraftGames") {
                     listOf()
                 }
             }
-            "edit" -> {
+            "edit", "pack", "store" -> {
                 return when (args.size) {
                     2 -> getCompletions(args[1], *Game.getGameNames())
                     3 -> {
@@ -1,6 +1,13 @@
 package com.github.lazoyoung.craftgames.impl.command
 
+import com.github.lazoyoung.craftgames.impl.Main
 import com.github.lazoyoung.craftgames.impl.command.page.*
+import com.github.lazoyoung.craftgames.impl.game.Game
+import com.github.lazoyoung.craftgames.impl.game.GamePhase
+import com.github.lazoyoung.craftgames.impl.game.GamePool
+import com.github.lazoyoung.craftgames.impl.game.MatchmakingQueue
+import com.github.lazoyoung.craftgames.impl.game.PhaseHistogram
+import com.github.lazoyoung.craftgames.impl.game.TemplateCache
 import net.md_5.bungee.api.ChatColor
 import net.md_5.bungee.api.chat.ClickEvent
 import net.md_5.bungee.api.chat.ComponentBuilder
@@ -49,6 +56,31 @@ class InfoCommand : CommandBase("CraftGames") {
                             "\u25cb /itag",
                             "Manage/edit item tags.",
                             "/itag help"
+                    ),
+                    PageBody.Element(
+                            "\u25cb /cg reload",
+                            "Reload config.yml.",
+                            "/cg reload"
+                    ),
+                    PageBody.Element(
+                            "\u25cb /cg pool",
+                            "Inspect standby game pools.",
+                            "/cg pool"
+                    ),
+                    PageBody.Element(
+                            "\u25cb /cg queue",
+                            "Inspect matchmaking queues.",
+                            "/cg queue"
+                    ),
+                    PageBody.Element(
+                            "\u25cb /cg cache",
+                            "Inspect map template cache.",
+                            "/cg cache"
+                    ),
+                    PageBody.Element(
+                            "\u25cb /cg phases (game)",
+                            "Inspect time spent in each game phase.",
+                            "/cg phases "
                     )
             )
     )
@@ -91,6 +123,120 @@ class InfoCommand : CommandBase("CraftGames") {
             Page.isPrompted(args) -> {
                 return helpPage.display(sender, args)
             }
+            args[0].equals("reload", true) -> {
+                if (!sender.hasPermission("craftgames.admin.reload")) {
+                    sender.sendMessage("$error You don't have permission.")
+                    return true
+                }
+
+                try {
+                    Main.instance.reloadConfig()
+                    GamePool.load()
+                    sender.sendMessage("$info config.yml has been reloaded.")
+                } catch (e: Exception) {
+                    e.printStackTrace()
+                    sender.sendMessage("$error Failed to reload config.yml. See console for details.")
+                }
+            }
+            args[0].equals("pool", true) -> {
+                if (!sender.hasPermission("craftgames.admin.manage")) {
+                    sender.sendMessage("$error You don't have permission.")
+                    return true
+                }
+
+                val pools = GamePool.getPools()
+
+                if (pools.isEmpty()) {
+                    sender.sendMessage("$info No game pool is configured.")
+                    return true
+                }
+
+                for (pool in pools) {
+                    val total = pool.hits + pool.misses
+                    val hitRate = if (total > 0) pool.hits * 100 / total else 0
+
+                    sender.sendMessage("$info ${pool.gameName}: " +
+                            "ready ${pool.getReadySize()}/${pool.minReady}, " +
+                            "warming ${pool.getWarmingSize()}, " +
+                            "hits ${pool.hits}, misses ${pool.misses} ($hitRate% hit), " +
+                            "time-to-ready ${pool.getAverageTimeToReady()}ms")
+                }
+            }
+            args[0].equals("queue", true) -> {
+                if (!sender.hasPermission("craftgames.admin.manage")) {
+                    sender.sendMessage("$error You don't have permission.")
+                    return true
+                }
+
+                val queues = MatchmakingQueue.getQueues()
+
+                if (queues.isEmpty()) {
+                    sender.sendMessage("$info No one has queued yet.")
+                    return true
+                }
+
+                for (queue in queues) {
+                    sender.sendMessage("$info ${queue.gameName}: " +
+                            "waiting ${queue.getPartyDepth()} parties (${queue.getPlayerDepth()} players), " +
+                            "served ${queue.served}, " +
+                            "wait ${queue.getAverageWait()}ms avg, ${queue.maxWait}ms max")
+                }
+            }
+            args[0].equals("cache", true) -> {
+                if (!sender.hasPermission("craftgames.admin.manage")) {
+                    sender.sendMessage("$error You don't have permission.")
+                    return true
+                }
+
+                if (!TemplateCache.isEnabled()) {
+                    sender.sendMessage("$info Template cache is disabled.")
+                    return true
+                }
+
+                val total = TemplateCache.hits + TemplateCache.misses
+                val hitRate = if (total > 0) TemplateCache.hits * 100 / total else 0
+
+                sender.sendMessage("$info Template cache: " +
+                        "${TemplateCache.getTemplateCount()} maps, " +
+                        "${TemplateCache.size / 1048576}/${Main.getConfig().templateCacheBudget / 1048576} MB, " +
+                        "hits ${TemplateCache.hits}, misses ${TemplateCache.misses} ($hitRate% hit), " +
+                        "served ${TemplateCache.bytesServed / 1048576} MB")
+            }
+            args[0].equals("phases", true) -> {
+                if (!sender.hasPermission("craftgames.admin.manage")) {
+                    sender.sendMessage("$error You don't have permission.")
+                    return true
+                }
+
+                val gameNames = if (args.size > 1) listOf(args[1]) else PhaseHistogram.getGameNames()
+
+                if (gameNames.isEmpty()) {
+                    sender.sendMessage("$info No phase has been recorded yet.")
+                    return true
+                }
+
+                for (gameName in gameNames) {
+                    val histogram = PhaseHistogram.get(gameName)
+
+                    if (histogram == null) {
+                        sender.sendMessage("$warn No phase has been recorded for $gameName.")
+                        continue
+                    }
+
+                    sender.sendMessage("$info Phase durations of $gameName:")
+
+                    for (phase in GamePhase.values()) {
+                        val count = histogram.getCount(phase)
+
+                        if (count > 0) {
+                            sender.sendMessage("  ${phase.name}: count $count, " +
+                                    "mean ${histogram.getMean(phase)}ms, " +
+                                    "p50 <${histogram.getPercentile(phase, 50)}ms, " +
+                                    "p95 <${histogram.getPercentile(phase, 95)}ms")
+                        }
+                    }
+                }
+            }
             else -> {
                 return false
             }
@@ -102,11 +248,17 @@ class InfoCommand : CommandBase("CraftGames") {
     override fun onTabComplete(sender: CommandSender, command: Command, alias: String, args: Array<String>): List<String> {
         return when {
             args.isEmpty() -> {
-                listOf("help")
+                listOf("help", "reload", "pool", "queue", "cache", "phases")
+            }
+            args.size == 1 -> {
+                getCompletions(args[0], "help", "reload", "pool", "queue", "cache", "phases")
             }
             args[0] == "help" && args.size == 2 -> {
                 helpPage.range.map { it.toString() }
             }
+            args[0] == "phases" && args.size == 2 -> {
+                getCompletions(args[1], Game.getGameNames().toList())
+            }
             else -> {
                 emptyList()
             }
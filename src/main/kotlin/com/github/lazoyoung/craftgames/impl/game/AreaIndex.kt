@@ -0,0 +1,167 @@
+package com.github.lazoyoung.craftgames.impl.game
+
+import com.github.lazoyoung.craftgames.impl.tag.coordinate.AreaCaptureService
+import org.bukkit.Location
+import java.util.*
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Immutable spatial index of the area captures in a map, which answers the area at a point.
+ *
+ * Each capture is put into a bucket of every chunk it overlaps, so that a lookup only examines
+ * the captures around the point. Captures spanning more than [LARGE_AREA_CHUNKS] chunks are kept aside
+ * and examined for every lookup, as they would otherwise flood the buckets.
+ * If areas overlap, the tag which comes first in the registry wins, just as the linear scan did.
+ * Every tag is identified by its order in registry, so a set of tags is represented by [BitSet].
+ *
+ * @param registry Key: Tag name, Value: Captures of the tag
+ */
+internal class AreaIndex(registry: Map<String, List<AreaCaptureService>>) {
+
+    /**
+     * Bounding box of a capture, which is inclusive in every axis.
+     */
+    private class Entry(
+            val tag: String,
+            /** Order of the tag in registry **/
+            val order: Int,
+            val minX: Int, val maxX: Int,
+            val minY: Int, val maxY: Int,
+            val minZ: Int, val maxZ: Int
+    ) {
+        fun contains(x: Int, y: Int, z: Int): Boolean {
+            return x in minX..maxX && y in minY..maxY && z in minZ..maxZ
+        }
+    }
+
+    companion object {
+        /** Captures spanning more chunks than this are not bucketed **/
+        private const val LARGE_AREA_CHUNKS = 64
+    }
+
+    /** Key: Chunk key, Value: Captures overlapping the chunk in order of tag **/
+    private val buckets: Map<Long, Array<Entry>>
+
+    /** Captures not bucketed, in order of tag **/
+    private val large: Array<Entry>
+
+    /** Number of captures indexed **/
+    val size: Int
+
+    /** Tag names in order of registry **/
+    private val tags: Array<String> = registry.keys.toTypedArray()
+
+    init {
+        val bucketLists = HashMap<Long, ArrayList<Entry>>()
+        val largeList = ArrayList<Entry>()
+        var count = 0
+
+        registry.entries.forEachIndexed { order, (tag, captures) ->
+            for (capture in captures) {
+                val entry = Entry(
+                        tag, order,
+                        min(capture.x1, capture.x2), max(capture.x1, capture.x2),
+                        min(capture.y1, capture.y2), max(capture.y1, capture.y2),
+                        min(capture.z1, capture.z2), max(capture.z1, capture.z2)
+                )
+                val chunksX = (entry.maxX shr 4).toLong() - (entry.minX shr 4) + 1
+                val chunksZ = (entry.maxZ shr 4).toLong() - (entry.minZ shr 4) + 1
+
+                count++
+
+                if (chunksX * chunksZ > LARGE_AREA_CHUNKS) {
+                    largeList.add(entry)
+                    continue
+                }
+
+                ChunkPreloader.forEachChunk(capture) { key ->
+                    bucketLists.getOrPut(key) { ArrayList() }.add(entry)
+                }
+            }
+        }
+
+        // Entries are added in order of tag, hence the first match in each array has the lowest order.
+        buckets = bucketLists.mapValues { it.value.toTypedArray() }
+        large = largeList.toTypedArray()
+        size = count
+    }
+
+    /**
+     * Find the area tag at [loc].
+     *
+     * @return Name of the tag, or null if the location is not inside any area.
+     */
+    fun getAreaNameAt(loc: Location): String? {
+        return getAreaNameAt(loc.blockX, loc.blockY, loc.blockZ)
+    }
+
+    /**
+     * Find the area tag at the block coordinate.
+     *
+     * @return Name of the tag, or null if the coordinate is not inside any area.
+     */
+    fun getAreaNameAt(x: Int, y: Int, z: Int): String? {
+        var found: Entry? = null
+
+        buckets[ChunkPreloader.getKey(x shr 4, z shr 4)]?.let { bucket ->
+            for (entry in bucket) {
+                if (entry.contains(x, y, z)) {
+                    found = entry
+                    break
+                }
+            }
+        }
+
+        for (entry in large) {
+            if (entry.order >= (found?.order ?: Int.MAX_VALUE)) {
+                break
+            }
+
+            if (entry.contains(x, y, z)) {
+                found = entry
+                break
+            }
+        }
+
+        return found?.tag
+    }
+
+    /**
+     * Find every area tag at the block coordinate.
+     *
+     * @return Set of the tag IDs. Tag names are resolved by [getTags].
+     */
+    fun getAreasAt(x: Int, y: Int, z: Int): BitSet {
+        val set = BitSet(tags.size)
+
+        buckets[ChunkPreloader.getKey(x shr 4, z shr 4)]?.forEach {
+            if (it.contains(x, y, z)) {
+                set.set(it.order)
+            }
+        }
+
+        for (entry in large) {
+            if (entry.contains(x, y, z)) {
+                set.set(entry.order)
+            }
+        }
+
+        return set
+    }
+
+    /**
+     * Resolve the names of tag IDs in [set].
+     */
+    fun getTags(set: BitSet): List<String> {
+        val list = ArrayList<String>(set.cardinality())
+        var id = set.nextSetBit(0)
+
+        while (id >= 0) {
+            list.add(tags[id])
+            id = set.nextSetBit(id + 1)
+        }
+
+        return list
+    }
+}
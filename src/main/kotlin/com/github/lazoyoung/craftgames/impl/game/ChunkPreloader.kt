@@ -0,0 +1,196 @@
+package com.github.lazoyoung.craftgames.impl.game
+
+import com.github.lazoyoung.craftgames.impl.Main
+import com.github.lazoyoung.craftgames.impl.tag.TagRegistry
+import com.github.lazoyoung.craftgames.impl.tag.coordinate.AreaCaptureService
+import com.github.lazoyoung.craftgames.impl.tag.coordinate.BlockCaptureService
+import com.github.lazoyoung.craftgames.impl.tag.coordinate.CoordCaptureService
+import com.github.lazoyoung.craftgames.impl.tag.coordinate.SpawnCaptureService
+import org.bukkit.Chunk
+import org.bukkit.World
+import java.util.function.Consumer
+import kotlin.math.floor
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * Loads the chunks referred by coordinate tags of a map, before the world is handed over to the game.
+ *
+ * Every captured region is collapsed into a set of chunk keys, so overlapping captures don't request
+ * the same chunk twice. Chunks of spawn captures are loaded first, followed by those of area captures.
+ * Only a limited number of chunks are requested at once. Everything here must run in main thread.
+ *
+ * Each chunk is held by [tickets] as soon as it's loaded, so that it can't be unloaded
+ * while the rest are still loading. See [ChunkTicketManager.SPAWN] and [ChunkTicketManager.AREA]
+ */
+internal class ChunkPreloader(
+        private val world: World,
+        private val mapID: String,
+        tagRegistry: TagRegistry,
+        private val tickets: ChunkTicketManager
+) {
+    /** Chunk keys in order of priority **/
+    private val plan = LinkedHashSet<Long>()
+
+    /** Chunks of spawn captures **/
+    val spawnChunks = LinkedHashSet<Long>()
+
+    /** Chunks of area captures **/
+    val areaChunks = LinkedHashSet<Long>()
+
+    /** Number of chunk requests which overlapped with the plan **/
+    var duplicates = 0
+        private set
+
+    /** Number of chunks loaded so far **/
+    var loaded = 0
+        private set
+
+    private val iterator: Iterator<Long>
+    private val chunks = ArrayList<Chunk>()
+    private var pending = 0
+    private var pumping = false
+    private var startTime = 0L
+    private var callback: Consumer<List<Chunk>>? = null
+
+    companion object {
+        /** Number of chunks requested at once **/
+        private const val CONCURRENCY = 16
+
+        fun getKey(x: Int, z: Int): Long {
+            return (x.toLong() and 0xFFFFFFFFL) or ((z.toLong() and 0xFFFFFFFFL) shl 32)
+        }
+
+        fun getX(key: Long): Int {
+            return key.toInt()
+        }
+
+        fun getZ(key: Long): Int {
+            return (key ushr 32).toInt()
+        }
+
+        /**
+         * Perform [action] upon the key of every chunk which the [capture] resides in.
+         */
+        fun forEachChunk(capture: CoordCaptureService, action: (Long) -> Unit) {
+            when (capture) {
+                is SpawnCaptureService -> {
+                    action(getKey(floor(capture.x / 16).toInt(), floor(capture.z / 16).toInt()))
+                }
+                is BlockCaptureService -> {
+                    action(getKey(capture.x shr 4, capture.z shr 4))
+                }
+                is AreaCaptureService -> {
+                    for (x in (min(capture.x1, capture.x2) shr 4)..(max(capture.x1, capture.x2) shr 4)) {
+                        for (z in (min(capture.z1, capture.z2) shr 4)..(max(capture.z1, capture.z2) shr 4)) {
+                            action(getKey(x, z))
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    init {
+        val captures = tagRegistry.getCoordTags().flatMap { it.getCaptures(mapID) }
+
+        captures.filterIsInstance<SpawnCaptureService>().forEach {
+            forEachChunk(it) { key -> add(key, spawnChunks) }
+        }
+
+        captures.filterIsInstance<AreaCaptureService>().forEach {
+            forEachChunk(it) { key -> add(key, areaChunks) }
+        }
+
+        iterator = plan.iterator()
+    }
+
+    /**
+     * Number of chunks to load.
+     */
+    fun getPlanned(): Int {
+        return plan.size
+    }
+
+    /**
+     * Begin to load chunks.
+     *
+     * @param callback Returns the chunks loaded, once every request is finished.
+     */
+    fun start(callback: Consumer<List<Chunk>>) {
+        this.callback = callback
+        this.startTime = System.currentTimeMillis()
+        pump()
+    }
+
+    private fun add(key: Long, tier: MutableSet<Long>) {
+        tier.add(key)
+
+        if (!plan.add(key)) {
+            duplicates++
+        }
+    }
+
+    /**
+     * Hold the ticket of chunk [key] on behalf of every tier it belongs to.
+     */
+    private fun hold(key: Long) {
+        if (spawnChunks.contains(key)) {
+            tickets.hold(key, ChunkTicketManager.SPAWN)
+        }
+
+        if (areaChunks.contains(key)) {
+            tickets.hold(key, ChunkTicketManager.AREA)
+        }
+    }
+
+    /**
+     * Release the ticket of chunk [key] which has failed to load.
+     */
+    private fun release(key: Long) {
+        tickets.release(key, ChunkTicketManager.SPAWN)
+        tickets.release(key, ChunkTicketManager.AREA)
+    }
+
+    private fun pump() {
+        // Requests for loaded chunks complete at once. Don't recurse for them.
+        if (pumping) {
+            return
+        }
+
+        pumping = true
+
+        while (pending < CONCURRENCY && iterator.hasNext()) {
+            val key = iterator.next()
+
+            pending++
+            world.getChunkAtAsync(getX(key), getZ(key)).whenComplete { chunk, t ->
+                pending--
+
+                if (t != null) {
+                    t.printStackTrace()
+                    release(key)
+                } else if (chunk != null) {
+                    hold(key)
+                    chunks.add(chunk)
+                    loaded++
+                } else {
+                    release(key)
+                }
+
+                pump()
+            }
+        }
+
+        pumping = false
+
+        if (pending == 0 && !iterator.hasNext()) {
+            callback?.let {
+                callback = null
+                Main.logger.info("Preloaded map $mapID: $loaded/${plan.size} chunks " +
+                        "($duplicates duplicates skipped) in ${System.currentTimeMillis() - startTime} ms.")
+                it.accept(chunks)
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.github.lazoyoung.craftgames.impl.game
+
+import com.github.lazoyoung.craftgames.impl.Main
+import org.bukkit.World
+
+/**
+ * Keeps chunks of a game world loaded by plugin tickets, and remembers why each chunk is held.
+ *
+ * A chunk holds one ticket as long as it has any holder.
+ * The ticket is removed once the last holder releases it, letting the server unload the chunk.
+ * Everything here must run in main thread.
+ */
+internal class ChunkTicketManager(private val world: World) {
+
+    companion object {
+        /** Chunks of spawn captures, held until the first spawn wave is over **/
+        const val SPAWN = "spawn"
+
+        /** Chunks of area captures, held until the first spawn wave is over **/
+        const val AREA = "area"
+
+        /**
+         * Holder of the chunks pinned by script.
+         *
+         * @param tag Name of the coordinate tag whose captures are pinned.
+         */
+        fun script(tag: String): String {
+            return "script:$tag"
+        }
+    }
+
+    /** Key: Chunk key, Value: Holders of the chunk **/
+    private val holders = HashMap<Long, HashSet<String>>()
+
+    /** Key: Holder, Value: Chunk keys held by it **/
+    private val holdings = HashMap<String, HashSet<Long>>()
+
+    private var discarded = false
+
+    /** Number of chunks held **/
+    val size: Int
+        get() = holders.size
+
+    /**
+     * Hold the chunks of [keys] on behalf of the [holder].
+     */
+    fun hold(keys: Collection<Long>, holder: String) {
+        keys.forEach { hold(it, holder) }
+    }
+
+    /**
+     * Hold the chunk of [key] on behalf of the [holder].
+     */
+    fun hold(key: Long, holder: String) {
+        if (discarded || !holdings.getOrPut(holder) { HashSet() }.add(key)) {
+            return
+        }
+
+        holders.getOrPut(key) {
+            world.addPluginChunkTicket(ChunkPreloader.getX(key), ChunkPreloader.getZ(key), Main.instance)
+            HashSet()
+        }.add(holder)
+    }
+
+    /**
+     * Release every chunk held by the [holder].
+     */
+    fun release(holder: String) {
+        val holding = holdings.remove(holder) ?: return
+
+        if (discarded) {
+            return
+        }
+
+        holding.forEach { unhold(it, holder) }
+    }
+
+    /**
+     * Release the chunk of [key] held by the [holder].
+     */
+    fun release(key: Long, holder: String) {
+        if (holdings[holder]?.remove(key) != true || discarded) {
+            return
+        }
+
+        unhold(key, holder)
+    }
+
+    private fun unhold(key: Long, holder: String) {
+        val set = holders[key] ?: return
+
+        if (set.remove(holder) && set.isEmpty()) {
+            holders.remove(key)
+            world.removePluginChunkTicket(ChunkPreloader.getX(key), ChunkPreloader.getZ(key), Main.instance)
+        }
+    }
+
+    /**
+     * Forget every ticket without touching the world. This is called when the world is unloaded.
+     */
+    fun discard() {
+        discarded = true
+        holders.clear()
+        holdings.clear()
+    }
+}
@@ -24,10 +24,9 @@ import org.bukkit.entity.Player
 import org.bukkit.event.player.PlayerTeleportEvent
 import java.util.*
 import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
 import java.util.function.Consumer
 import javax.script.ScriptException
-import kotlin.collections.ArrayList
-import kotlin.collections.LinkedHashMap
 
 class Game(
         val name: String,
@@ -46,12 +45,22 @@ class Game(
     /** All kind of modules **/
     val module = ModuleService(this)
 
-    /** List of players (regardless of PlayerState) **/
-    internal val players = LinkedList<UUID>()
+    /** Members of this game partitioned by their type **/
+    internal val roster = GameRoster()
 
-    internal val taskList = ArrayList<GameTask>()
+    /** Key: Phase, Value: Tasks waiting for transition to the phase **/
+    private val taskQueue = EnumMap<GamePhase, ArrayDeque<GameTask>>(GamePhase::class.java)
     private var taskFailed = false
 
+    /** Key: Phase, Value: The last time this game entered the phase **/
+    private val phaseTimestamps = EnumMap<GamePhase, Long>(GamePhase::class.java)
+
+    /** Determines if this game is waiting for players in [GamePool] **/
+    internal var standby = false
+
+    /** Map being installed for this game, whose world is yet to be loaded **/
+    internal var pendingMap: GameMap? = null
+
     init {
         module.registerTasks()
         updatePhase(GamePhase.INIT)
@@ -59,24 +68,25 @@ class Game(
 
     companion object {
 
-        /** Key: ID, Value: Game instance **/
-        private val runningGames = LinkedHashMap<Int, Game>()
+        /** Live games indexed by ID, name, edit mode and phase **/
+        private val registry = GameRegistry()
 
-        /** Next ID for new game **/
-        private var nextID = 0
+        /** Key: World UID, Value: Game instance which owns the world **/
+        private val worldIndex = ConcurrentHashMap<UUID, Game>()
+
+        /** Key: Name of the world being created, Value: Game instance **/
+        private val pendingWorlds = ConcurrentHashMap<String, Game>()
 
         /**
          * Find live games with the given filters.
          *
          * @param name The name of the game to find. (Pass null to search everything)
-         * @param isEditMode Find the games that are in edit mode. Defaults to false.
-         * @return A list of games found by given arguments.
+         * @param isEditMode Find the games that are in edit mode. (Pass null to search everything)
+         * @param phase Find the games in this phase. (Pass null to search everything)
+         * @return A snapshot of games found by given arguments, sorted by ID.
          */
-        fun find(name: String? = null, isEditMode: Boolean? = null): List<Game> {
-            return runningGames.values.filter {
-                (name == null || it.name == name)
-                        && (isEditMode == null || it.editMode == isEditMode)
-            }
+        fun find(name: String? = null, isEditMode: Boolean? = null, phase: GamePhase? = null): List<Game> {
+            return registry.find(name, isEditMode, phase)
         }
 
         /**
@@ -85,32 +95,20 @@ class Game(
          * @param id Instance ID
          */
         fun getByID(id: Int): Game? {
-            return runningGames[id]
+            return registry.get(id)
         }
 
         /**
          * Find the live game by world.
          *
          * @param world world instance
-         * @throws FaultyConfiguration is thrown if world-label is not defined in config.yml
          */
         fun getByWorld(world: World): Game? {
-            val label = Main.getConfig()?.getString("world-label")?.plus("_")
-                    ?: throw FaultyConfiguration("world-label is not defined in config.yml")
-            val worldName = world.name
-
-            return if (worldName.startsWith(label)) {
-                getByID(worldName.replace(label, "").toInt())
-            } else {
-                null
-            }
+            return worldIndex[world.uid]
         }
 
         fun getGameNames(): Array<String> {
-            return Main.getConfig()
-                    ?.getConfigurationSection("games")
-                    ?.getKeys(false)?.toTypedArray()
-                    ?: emptyArray()
+            return Main.getConfig().gameNames.toTypedArray()
         }
 
         /**
@@ -118,18 +116,99 @@ class Game(
          *
          * If null is passed to mapID, lobby map is chosen and generated.
          *
+         * Resources are loaded and scripts are compiled in asynchronous thread.
+         * The rest of process, including script execution, takes place in main thread.
+         * The future is completed in main thread. It completes as soon as map generation begins.
+         *
+         * Future may complete exceptionally with one of the following:
+         * [GameNotFound] No such game exists by given [name].
+         * [MapNotFound] No such map exists by given [mapID].
+         * [FaultyConfiguration] Configuration is not complete.
+         * [ScriptException] Cannot evaluate script.
+         * [RuntimeException] Unexpected issue has arrised.
+         *
          * @param name Classifies the type of game
          * @param editMode The game is in editor mode, if true.
          * @param mapID The map in which the game will take place.
-         * @throws GameNotFound No such game exists by given [name].
-         * @throws MapNotFound No such map exists by given [mapID].
-         * @throws FaultyConfiguration Configuration is not complete.
-         * @throws RuntimeException Unexpected issue has arrised.
-         * @throws ScriptException Cannot evaluate script.
+         * @return A future which returns the new game.
          */
-        fun openNew(name: String, editMode: Boolean, mapID: String? = null): Game {
-            val resource = GameResource(name)
-            val game = Game(name, -1, editMode, resource)
+        fun openNew(name: String, editMode: Boolean, mapID: String? = null): CompletableFuture<Game> {
+            val future = CompletableFuture<Game>()
+            val plugin = Main.instance
+            val scheduler = Bukkit.getScheduler()
+
+            fun fail(t: Throwable) {
+                scheduler.runTask(plugin, Runnable { future.completeExceptionally(t) })
+            }
+
+            scheduler.runTaskAsynchronously(plugin, Runnable {
+                val resource = try {
+                    GameResource.acquire(name, editMode)
+                } catch (e: Exception) {
+                    fail(e)
+                    return@Runnable
+                }
+                val script = resource.mainScript
+                val map: GameMap
+
+                try {
+                    map = if (mapID == null) {
+                        resource.mapRegistry.getLobby()
+                    } else {
+                        resource.mapRegistry.getMap(mapID)
+                                ?: throw MapNotFound("Map $mapID does not exist for game: $name.")
+                    }
+
+                    if (Main.getConfig().worldLabel == null) {
+                        throw FaultyConfiguration("world-label is not defined in config.yml")
+                    }
+                } catch (e: Exception) {
+                    resource.release()
+                    fail(e)
+                    return@Runnable
+                }
+
+                try {
+                    script.startLogging()
+                    script.parse()
+                } catch (e: Exception) {
+                    script.writeStackTrace(e)
+                    resource.release()
+                    fail(ScriptException("Cannot compile script."))
+                    return@Runnable
+                }
+
+                scheduler.runTask(plugin, Runnable {
+                    try {
+                        future.complete(launch(name, editMode, resource, map))
+                    } catch (e: Exception) {
+                        future.completeExceptionally(e)
+                    }
+                })
+            })
+
+            return future
+        }
+
+        /**
+         * Construct the game upon the [resource] whose main script is already parsed,
+         * then begin to generate [map]. This must be called in main thread.
+         *
+         * @param name Classifies the type of game
+         * @param editMode The game is in editor mode, if true.
+         */
+        private fun launch(
+                name: String,
+                editMode: Boolean,
+                resource: GameResource,
+                map: GameMap
+        ): Game {
+            val game = try {
+                Game(name, -1, editMode, resource)
+            } catch (e: Exception) {
+                resource.release()
+                throw e
+            }
             val postGenerate = Consumer<World> {
                 val initEvent = GameInitEvent(game)
                 Bukkit.getPluginManager().callEvent(initEvent)
@@ -154,50 +233,63 @@ class Game(
                 throw ScriptException("Cannot evaluate script.")
             }
 
-            game.phase = GamePhase.GENERATE
+            game.updatePhase(GamePhase.GENERATE)
+            game.map = map
             assignID(game)
+            map.generate(game, postGenerate)
+            return game
+        }
 
-            if (mapID == null) {
-                resource.mapRegistry.getLobby().generate(game, postGenerate)
-            } else {
-                game.map = resource.mapRegistry.getMap(mapID)
-                        ?: throw MapNotFound("Map $mapID does not exist for game: $name.")
-                game.map.generate(game, postGenerate)
-            }
+        /**
+         * Declare that a world named [worldName] is about to be created for [game].
+         * The world is indexed once it's initialized. See [indexWorld].
+         */
+        internal fun expectWorld(worldName: String, game: Game) {
+            pendingWorlds[worldName] = game
+        }
+
+        /**
+         * Index the [world] if it has been [expected][expectWorld] by a game.
+         *
+         * @return The game which owns this world, or null if it's not a game world.
+         */
+        internal fun indexWorld(world: World): Game? {
+            val game = pendingWorlds.remove(world.name)
+                    ?: return worldIndex[world.uid]
 
+            worldIndex[world.uid] = game
             return game
         }
 
+        /**
+         * Remove the [world] from index. This should be called before the world is unloaded.
+         */
+        internal fun unindexWorld(world: World) {
+            worldIndex.remove(world.uid)
+        }
+
+        /**
+         * Forget the world named [worldName] which failed to be created.
+         */
+        internal fun discardWorld(worldName: String) {
+            pendingWorlds.remove(worldName)
+        }
+
         internal fun unregister(game: Game) {
-            runningGames.remove(game.id)
+            registry.unregister(game)
+            worldIndex.values.removeIf { it === game }
+            pendingWorlds.values.removeIf { it === game }
+            game.resource.release()
         }
 
         internal fun reassignID(game: Game) {
-            runningGames.remove(game.id)
+            registry.unregister(game)
             assignID(game)
         }
 
         private fun assignID(game: Game) {
-            val label = Main.getConfig()?.getString("world-label")
-
-            if (label == null) {
-                game.forceStop(error = true)
-                throw FaultyConfiguration("world-label is not defined in config.yml")
-            }
-
-            Bukkit.getWorldContainer().listFiles()?.forEach {
-                if (it.isDirectory && it.name.startsWith(label.plus('_'))) {
-                    val id = Regex("(_\\d+)").findAll(it.name).last().value.drop(1).toInt()
-
-                    // Prevents possible conflict with an existing world
-                    if (id >= nextID) {
-                        nextID = id + 1
-                    }
-                }
-            }
-
-            game.id = nextID
-            runningGames[nextID++] = game
+            game.id = GameIDAllocator.allocate()
+            registry.register(game)
         }
     }
 
@@ -260,7 +352,7 @@ class Game(
      *
      * This function is NOT thread-safe.
      */
-    fun forceStop(async: Boolean = true, error: Boolean) {
+    fun forceStop(error: Boolean) {
         getPlayers().forEach {
             if (error) {
                 it.sendMessage(
@@ -275,7 +367,7 @@ class Game(
             }
         }
 
-        close(async)
+        close()
     }
 
     /**
@@ -287,13 +379,13 @@ class Game(
         val joinPerm = Bukkit.getPluginCommand("join")!!.permission!!
         val editPerm = Bukkit.getPluginCommand("game")!!.permission!!
 
-        return if (players.contains(player.uniqueId)) {
+        return if (roster.contains(player.uniqueId)) {
             GameJoinRejectedException.Cause.PLAYING_THIS
         } else if (PlayerData.get(player) != null) {
             GameJoinRejectedException.Cause.PLAYING_OTHER
         } else if (!player.hasPermission(joinPerm) || editMode && !player.hasPermission(editPerm)) {
             GameJoinRejectedException.Cause.NO_PERMISSION
-        } else if (players.count() >= service.maxPlayer) {
+        } else if (roster.size >= service.maxPlayer) {
             GameJoinRejectedException.Cause.FULL
         } else {
             when (phase) {
@@ -324,9 +416,12 @@ class Game(
     /**
      * Make the [player] join this game.
      *
-     * Caller is responsible for handling the [outcome][CompletableFuture].
+     * Rejection is informed to the player. Caller may handle the [outcome][CompletableFuture] further.
+     *
+     * @return A future which returns true once the player has joined, or false if [GameJoinEvent] is cancelled.
+     * It completes exceptionally with [GameJoinRejectedException] if the player is rejected.
      */
-    fun joinPlayer(player: Player) {
+    fun joinPlayer(player: Player): CompletableFuture<Boolean> {
         val future = CompletableFuture<Boolean>()
 
         if (!canJoin(player)) {
@@ -340,7 +435,8 @@ class Game(
             Bukkit.getPluginManager().callEvent(event)
 
             if (event.isCancelled) {
-                return
+                future.complete(false)
+                return future
             } else try {
                 gamePlayer = GamePlayer.register(player, this)
             } catch (e: RuntimeException) {
@@ -348,11 +444,18 @@ class Game(
                 future.completeExceptionally(
                         GameJoinRejectedException(player, GameJoinRejectedException.Cause.ERROR)
                 )
-                return
+                handleJoinException(future)
+                return future
             }
 
+            if (standby) {
+                GamePool.get(name)?.claim(this)
+            }
+
+            roster.reserve(player.uniqueId)
+
             enterGame(gamePlayer, future) {
-                players.add(player.uniqueId)
+                roster.put(player, PlayerType.PLAYER)
 
                 if (phase == GamePhase.LOBBY) {
                     gamePlayer.restore(RestoreMode.JOIN)
@@ -379,10 +482,10 @@ class Game(
         }
 
         handleJoinException(future)
+        return future
     }
 
     fun joinSpectator(player: Player) {
-        val uid = player.uniqueId
         val spectator: Spectator
         val event = GameJoinEvent(this, player, PlayerType.SPECTATOR)
         val future = CompletableFuture<Boolean>()
@@ -403,7 +506,7 @@ class Game(
             }
 
             enterGame(spectator, future) {
-                players.add(uid)
+                roster.put(player, PlayerType.SPECTATOR)
                 spectator.restore(RestoreMode.JOIN)
                 player.gameMode = GameMode.SPECTATOR
                 player.sendMessage("You are now spectating $name.")
@@ -415,10 +518,9 @@ class Game(
 
     fun joinEditor(gameEditor: GameEditor) {
         val player = gameEditor.getPlayer()
-        val uid = player.uniqueId
         val event = GameJoinEvent(this, player, PlayerType.EDITOR)
         val future = CompletableFuture<Boolean>()
-        val text = if (players.size == 0) {
+        val text = if (roster.size == 0) {
             "You are now editing '${map.id}\'."
         } else {
             getPlayers().joinToString(
@@ -434,7 +536,7 @@ class Game(
             future.complete(false)
         } else {
             enterGame(gameEditor, future) {
-                players.add(uid)
+                roster.put(player, PlayerType.EDITOR)
                 gameEditor.restore(RestoreMode.JOIN)
                 gameEditor.updateActionbar()
                 player.gameMode = GameMode.CREATIVE
@@ -451,8 +553,13 @@ class Game(
         handleJoinException(future)
     }
 
+    /**
+     * Get every member of this game regardless of their type.
+     *
+     * @return An immutable view which is cached until the members change.
+     */
     fun getPlayers(): List<Player> {
-        return players.mapNotNull { Bukkit.getPlayer(it) }
+        return roster.getAll()
     }
 
     fun getGameService(): GameModuleService {
@@ -494,17 +601,26 @@ class Game(
     /**
      * Terminate the game.
      *
-     * @param async Asynchronously destruct the current map.
      * @param timer The amount of time to wait before termination.
      */
-    internal fun close(async: Boolean = true, timer: Timer = Timer(TimeUnit.TICK, 0)) {
+    internal fun close(timer: Timer = Timer(TimeUnit.TICK, 0)) {
 
         fun terminate() {
             getPlayers().mapNotNull { PlayerData.get(it) }.forEach(PlayerData::leaveGame)
             unregister(this)
 
+            val pending = pendingMap
+            val ownsID = map.isGenerated && map.worldID == id
+
             if (map.isGenerated) {
-                map.destruct(async)
+                map.destruct()
+            }
+
+            if (pending != null) {
+                // Map releases the ID once the installed files are trashed.
+                pending.abandon()
+            } else if (!ownsID) {
+                GameIDAllocator.release(id)
             }
         }
 
@@ -539,7 +655,7 @@ class Game(
         MessageTask.clearAll(player)
         ActionbarTask.clearAll(player)
         module.ejectPlayer(playerData)
-        players.remove(uid)
+        roster.remove(uid)
         player.teleport(exitLoc, cause)
 
         if (lobby.exitServer != null) {
@@ -555,19 +671,47 @@ class Game(
         Bukkit.getPluginManager().callEvent(event)
     }
 
+    /**
+     * Get the time at which this game entered each phase. (in epoch milliseconds)
+     * See [PhaseHistogram] for the statistics across instances.
+     */
+    fun getPhaseTimestamps(): Map<GamePhase, Long> {
+        return Collections.unmodifiableMap(EnumMap(phaseTimestamps))
+    }
+
+    internal fun scheduleTask(task: GameTask) {
+        task.phase.forEach {
+            taskQueue.getOrPut(it) { ArrayDeque() }.add(task)
+        }
+    }
+
     internal fun updatePhase(phase: GamePhase) {
+        val lastPhase = this.phase
+        val now = System.currentTimeMillis()
+
+        phaseTimestamps[lastPhase]?.let {
+            if (lastPhase != phase) {
+                PhaseHistogram.record(name, lastPhase, now - it)
+            }
+        }
+
+        phaseTimestamps[phase] = now
         this.phase = phase
+        registry.updatePhase(this, lastPhase)
 
         try {
-            if (!taskFailed) {
-                val iter = taskList.iterator()
+            val queue = taskQueue[phase]
+
+            if (!taskFailed && queue != null) {
+                // Tasks scheduled during dispatch wait for the next transition.
+                var count = queue.size
 
-                while (iter.hasNext()) {
-                    val task = iter.next()
+                while (count-- > 0) {
+                    val task = queue.pollFirst() ?: break
 
-                    if (task.phase.contains(phase)) {
+                    // Task waiting for multiple phases is executed only once.
+                    if (!task.isDone) {
                         task.execute()
-                        iter.remove()
                     }
                 }
             }
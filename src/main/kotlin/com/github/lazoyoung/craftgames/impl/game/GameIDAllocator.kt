@@ -0,0 +1,128 @@
+package com.github.lazoyoung.craftgames.impl.game
+
+import com.github.lazoyoung.craftgames.impl.Main
+import com.github.lazoyoung.craftgames.impl.exception.FaultyConfiguration
+import org.bukkit.Bukkit
+import org.bukkit.configuration.file.YamlConfiguration
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.ConcurrentSkipListSet
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Allocates IDs for game instances. World directory of an instance is named after its ID.
+ *
+ * An ID is recycled once the world directory named after it is deleted.
+ * State is persisted in _data/game-id.yml and reconciled against world container only once at startup.
+ */
+class GameIDAllocator {
+    companion object {
+        /** The lowest ID that has never been allocated **/
+        private val next = AtomicInteger(0)
+
+        /** IDs that have been released **/
+        private val free = ConcurrentSkipListSet<Int>()
+
+        private val saving = AtomicBoolean(false)
+
+        private val file: File
+            get() = Main.dataFolder.resolve("game-id.yml")
+
+        /**
+         * Read the persisted state and reconcile it against the worlds in world container.
+         * This must be called once at startup, before any game is opened.
+         */
+        internal fun load() {
+            val config = YamlConfiguration.loadConfiguration(file)
+            val label = Main.getConfig().worldLabel
+            val reserved = HashSet<Int>()
+            var high = config.getInt("next", 0)
+
+            label?.let { "${it}_" }?.let { prefix ->
+                Bukkit.getWorldContainer().listFiles()?.forEach {
+                    if (it.isDirectory && it.name.startsWith(prefix)) {
+                        it.name.removePrefix(prefix).toIntOrNull()?.let { id -> reserved.add(id) }
+                    }
+                }
+            }
+
+            reserved.max()?.let {
+                if (it >= high) {
+                    high = it + 1
+                }
+            }
+
+            // No game is running yet. Every ID without a world is free to use.
+            free.clear()
+            next.set(high)
+
+            for (id in 0 until high) {
+                if (!reserved.contains(id)) {
+                    free.add(id)
+                }
+            }
+
+            save(async = false)
+        }
+
+        /**
+         * Get an unused ID. This is safe to be called from any thread.
+         */
+        internal fun allocate(): Int {
+            val id = free.pollFirst() ?: next.getAndIncrement()
+
+            save()
+            return id
+        }
+
+        /**
+         * Return the [id] to the allocator.
+         * The [id] is kept in use as long as a world directory is named after it.
+         *
+         * @throws FaultyConfiguration is thrown if world-label is not defined.
+         */
+        internal fun release(id: Int) {
+            val label = Main.getConfig().worldLabel
+                    ?: throw FaultyConfiguration("world-label is not defined in config.yml")
+
+            if (id < 0 || Bukkit.getWorldContainer().resolve("${label}_$id").exists()) {
+                return
+            }
+
+            free.add(id)
+            save()
+        }
+
+        /**
+         * Persist the state into disk.
+         *
+         * @param async Requests are coalesced and written in asynchronous thread, if true.
+         * Plugin being disabled always writes in current thread.
+         */
+        internal fun save(async: Boolean = true) {
+            val task = Runnable {
+                saving.set(false)
+
+                val config = YamlConfiguration()
+
+                config.set("next", next.get())
+                config.set("free", free.toList())
+
+                try {
+                    file.parentFile?.mkdirs()
+                    config.save(file)
+                } catch (e: IOException) {
+                    e.printStackTrace()
+                    Main.logger.warning("Failed to save game IDs.")
+                }
+            }
+
+            if (!async || !Main.instance.isEnabled) {
+                task.run()
+            } else if (saving.compareAndSet(false, true)) {
+                Bukkit.getScheduler().runTaskAsynchronously(Main.instance, task)
+            }
+        }
+    }
+}
@@ -30,9 +30,12 @@ class GameLayout(gameName: String) {
 
     internal val dataDir: Path
 
+    /** Compiled scripts are persisted here. **/
+    internal val scriptCacheDir: Path
+
     init {
         var fileReader: BufferedReader? = null
-        val layoutPathname = Main.getConfig()?.getString("games.$gameName.layout")
+        val layoutPathname = Main.getConfig().games[gameName]
                 ?: throw GameNotFound("Game layout is not defined in config.yml")
         val layoutFile = Main.instance.dataFolder.resolve(layoutPathname)
         path = layoutFile.toPath()
@@ -78,6 +81,7 @@ class GameLayout(gameName: String) {
         this.lootTableDir = lootTableDir?.let { root.resolve(it) }
         this.kitDir = this.dataDir.resolve("kit")
         this.shopkeepersDir = this.dataDir.resolve("shopkeepers")
+        this.scriptCacheDir = this.dataDir.resolve("script-cache")
     }
 
 }
\ No newline at end of file
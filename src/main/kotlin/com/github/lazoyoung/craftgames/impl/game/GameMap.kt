@@ -3,10 +3,9 @@ package com.github.lazoyoung.craftgames.impl.game
 import com.github.lazoyoung.craftgames.api.tag.coordinate.TagMode
 import com.github.lazoyoung.craftgames.impl.Main
 import com.github.lazoyoung.craftgames.impl.exception.FaultyConfiguration
-import com.github.lazoyoung.craftgames.impl.game.module.WorldModuleService
 import com.github.lazoyoung.craftgames.impl.tag.TagRegistry
 import com.github.lazoyoung.craftgames.impl.tag.coordinate.AreaCaptureService
-import com.github.lazoyoung.craftgames.impl.tag.coordinate.SpawnCaptureService
+import com.github.lazoyoung.craftgames.impl.util.ArchiveUtil
 import com.github.lazoyoung.craftgames.impl.util.FileUtil
 import org.bukkit.*
 import org.bukkit.event.player.PlayerTeleportEvent
@@ -14,9 +13,10 @@ import java.io.IOException
 import java.nio.file.*
 import java.util.*
 import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executor
 import java.util.function.Consumer
+import java.util.function.Supplier
 import kotlin.collections.HashMap
-import kotlin.math.floor
 
 class GameMap internal constructor(
         /** ID of this map **/
@@ -37,6 +37,9 @@ class GameMap internal constructor(
         /** Path to original map folder. **/
         internal val directory: Path,
 
+        /** Describes how the world is created **/
+        internal val profile: WorldProfile,
+
         private val tagRegistry: TagRegistry
 ) {
 
@@ -49,78 +52,60 @@ class GameMap internal constructor(
     /** Directory name of this world **/
     internal var worldName: String? = null
 
+    /** ID of the game instance which this world is named after **/
+    internal var worldID = -1
+
     internal var isGenerated = false
 
-    class Registry internal constructor(layout: GameLayout, tagRegistry: TagRegistry) {
+    /** Tickets of the chunks kept loaded in this world **/
+    internal var tickets: ChunkTicketManager? = null
 
-        private val storage: HashMap<String, GameMap>
-        private var lobby: String? = null
+    /** Path to the packed form of [directory]. See [ArchiveUtil] **/
+    internal val archive: Path = directory.resolveSibling(directory.fileName.toString() + ArchiveUtil.EXTENSION)
 
-        constructor(gameName: String) : this(GameLayout(gameName))
-        private constructor(layout: GameLayout) : this(layout, TagRegistry(layout))
-
-        init {
-            val entryList = layout.config.getMapList("maps")
-            val entryIterator = entryList.listIterator()
-            storage = HashMap(entryList.size)
-
-            @Suppress("UNCHECKED_CAST")
-            while (entryIterator.hasNext()) {
-                val directory: Path?
-                val entry = entryIterator.next().toMutableMap()
-                val mapID = entry["id"] as String?
-                var alias = entry["alias"] as String?
-                val directoryStr = entry["directory"] as String?
-                val isLobby = entry["lobby"] as Boolean? ?: false
-                val description: List<String> = when (val descRaw = entry["description"]) {
-                    is String -> {
-                        listOf(descRaw)
-                    }
-                    is List<*> -> {
-                        descRaw as List<String>
-                    }
-                    else -> {
-                        listOf()
-                    }
-                }
+    /** Path to the index of [directory] in content-addressed store. See [MapStore] **/
+    internal val index: Path = directory.resolveSibling(directory.fileName.toString() + MapStore.EXTENSION)
 
-                if (mapID == null) {
-                    Main.logger.warning("Map ID is not defined in ${layout.path}")
-                    continue
-                }
+    /** Spatial index of [areaRegistry], built once it's first looked up **/
+    internal val areaIndex: AreaIndex by lazy { AreaIndex(areaRegistry) }
 
-                if (alias == null)
-                    alias = mapID
+    /** Whether the game has been closed while this map is generating. See [abandon] **/
+    private var abandoned = false
 
-                if (directoryStr == null) {
-                    Main.logger.warning("Map directory is not defined: $mapID in ${layout.path}")
-                    continue
-                }
+    companion object {
+        /** Directory inside world container where worlds are installed before they're renamed in place **/
+        private const val STAGING_DIR = ".craftgames-staging"
 
-                try {
-                    directory = layout.root.resolve(directoryStr)
-                } catch (e: InvalidPathException) {
-                    throw FaultyConfiguration("Unable to locate map directory: $mapID in ${layout.path}", e)
-                }
+        /** Time to keep chunks of coordinate tags after game has started (in ticks) **/
+        private const val SPAWN_WAVE_TICKS = 200L
 
-                val areaRegistry = HashMap<String, List<AreaCaptureService>>()
+        /**
+         * Delete the worlds whose installation was interrupted, say by crash.
+         * This must be called at startup, before any map is generated.
+         */
+        internal fun purgeStaging() {
+            val staging = Bukkit.getWorldContainer().toPath().resolve(STAGING_DIR)
 
-                tagRegistry.getCoordTags().filter { it.mode == TagMode.AREA }.forEach {
-                    areaRegistry[it.name] = it.getCaptures(mapID) as List<AreaCaptureService>
-                }
+            if (Files.isDirectory(staging)) {
+                WorldTrash.trash(staging)
+            }
+        }
+    }
 
-                val map = GameMap(mapID, alias, description, isLobby, areaRegistry, directory, tagRegistry)
-                storage[mapID] = map
+    class Registry private constructor(
+            /** Key: Map ID, Value: GameMap instance **/
+            private val storage: HashMap<String, GameMap>
+    ) {
 
-                if (isLobby) {
-                    lobby = map.id
-                }
-            }
+        internal constructor(layout: GameLayout, tagRegistry: TagRegistry) : this(load(layout, tagRegistry))
+        constructor(gameName: String) : this(GameLayout(gameName))
+        private constructor(layout: GameLayout) : this(layout, TagRegistry(layout))
 
-            if (lobby == null) {
-                throw FaultyConfiguration("Lobby map is not defined in ${layout.path}.")
-            }
-        }
+        /**
+         * Copy every map from [registry] without reading layout again.
+         * Copies don't share world state with their originals.
+         */
+        internal constructor(registry: Registry) : this(HashMap(registry.storage.mapValues { it.value.duplicate() }))
 
         fun getMaps(): List<GameMap> {
             return storage.values.toList()
@@ -137,11 +122,107 @@ class GameMap internal constructor(
         fun getLobby(): GameMap {
             return storage.values.first { it.isLobby }
         }
+
+        companion object {
+            private fun load(layout: GameLayout, tagRegistry: TagRegistry): HashMap<String, GameMap> {
+                val entryList = layout.config.getMapList("maps")
+                val entryIterator = entryList.listIterator()
+                val storage = HashMap<String, GameMap>(entryList.size)
+                var lobby: String? = null
+
+                @Suppress("UNCHECKED_CAST")
+                while (entryIterator.hasNext()) {
+                    val directory: Path?
+                    val entry = entryIterator.next().toMutableMap()
+                    val mapID = entry["id"] as String?
+                    var alias = entry["alias"] as String?
+                    val directoryStr = entry["directory"] as String?
+                    val isLobby = entry["lobby"] as Boolean? ?: false
+                    val description: List<String> = when (val descRaw = entry["description"]) {
+                        is String -> {
+                            listOf(descRaw)
+                        }
+                        is List<*> -> {
+                            descRaw as List<String>
+                        }
+                        else -> {
+                            listOf()
+                        }
+                    }
+
+                    if (mapID == null) {
+                        Main.logger.warning("Map ID is not defined in ${layout.path}")
+                        continue
+                    }
+
+                    if (alias == null)
+                        alias = mapID
+
+                    if (directoryStr == null) {
+                        Main.logger.warning("Map directory is not defined: $mapID in ${layout.path}")
+                        continue
+                    }
+
+                    try {
+                        directory = layout.root.resolve(directoryStr)
+                    } catch (e: InvalidPathException) {
+                        throw FaultyConfiguration("Unable to locate map directory: $mapID in ${layout.path}", e)
+                    }
+
+                    val profile = WorldProfile.read(mapID, entry["world"] as Map<*, *>?)
+                    val areaRegistry = HashMap<String, List<AreaCaptureService>>()
+
+                    tagRegistry.getCoordTags().filter { it.mode == TagMode.AREA }.forEach {
+                        areaRegistry[it.name] = it.getCaptures(mapID) as List<AreaCaptureService>
+                    }
+
+                    val map = GameMap(mapID, alias, description, isLobby, areaRegistry, directory, profile, tagRegistry)
+                    storage[mapID] = map
+
+                    if (isLobby) {
+                        lobby = map.id
+                    }
+                }
+
+                if (lobby == null) {
+                    throw FaultyConfiguration("Lobby map is not defined in ${layout.path}.")
+                }
+
+                return storage
+            }
+        }
+    }
+
+    /**
+     * Check if this map is installed from its [archive] rather than [directory].
+     */
+    internal fun isPacked(): Boolean {
+        return Files.isRegularFile(archive)
+    }
+
+    /**
+     * Check if this map is installed from [MapStore] by its [index]. This takes precedence over [archive].
+     */
+    internal fun isStored(): Boolean {
+        return Files.isRegularFile(index)
+    }
+
+    /**
+     * Create a copy of this map which has yet to be generated.
+     */
+    internal fun duplicate(): GameMap {
+        return GameMap(id, alias, description, isLobby, areaRegistry, directory, profile, tagRegistry)
     }
 
     /**
      * Install a map from repository and generate it in asynchronous thread.
      *
+     * Map files are cloned (or installed from [MapStore], or unpacked from the archive) into a staging directory,
+     * which is then renamed into the world container. Sources are tried in this order:
+     * [MapStore], reflink of the directory if files are shared, [TemplateCache], archive and then the directory.
+     * Template is only ever read, so any number of games may generate the same map at once.
+     * It's held until the files are copied, so a save of the template waits for them. See [TemplateSync.hold]
+     *
      * @param game The game in which this map generates.
      * @param callback Returns the generated world after the end of process.
      * @throws RuntimeException Failed to generate map for unexpected reason.
@@ -152,7 +233,7 @@ class GameMap internal constructor(
         val container: Path
         val plugin = Main.instance
         val scheduler = Bukkit.getScheduler()
-        val label = Main.getConfig()?.getString("world-label")
+        val label = Main.getConfig().worldLabel
 
         if (label == null) {
             game.forceStop(error = true)
@@ -174,74 +255,112 @@ class GameMap internal constructor(
         }
 
         val worldName = StringBuilder(label).append('_').append(game.id).toString()
+        worldID = game.id
+        game.pendingMap = this
 
         // Copy world files to container
         scheduler.runTaskAsynchronously(plugin, Runnable {
+            // Template stays in place until it's copied, as an editor may be saving it. See TemplateSync
+            val hold = TemplateSync.hold(directory)
+
             when {
-                Files.isDirectory(directory) -> {
+                isStored() || isPacked() || Files.isDirectory(directory) -> {
+                    var installing = false
+
                     try {
-                        val renamed = directory.resolveSibling(worldName)
-                        val source = Files.move(
-                                directory, renamed,
-                                StandardCopyOption.REPLACE_EXISTING
-                        )
+                        val staging = Files.createDirectories(container.resolve(STAGING_DIR))
+                                .let { Files.createTempDirectory(it, "$worldName-") }
+                        val staged = staging.resolve(directory.fileName.toString())
                         val outcome = container.resolve(worldName)
 
-                        FileUtil.cloneFileTree(source, container).handleAsync {
+                        val share = Main.getConfig().shareMapFiles && !game.editMode
+                        val future = if (isStored()) {
+                            CompletableFuture.supplyAsync(Supplier {
+                                MapStore.install(index, staged)
+                                true
+                            }, Executor { it.run() })
+                        } else if (share && !isPacked()) {
+                            // Reflink writes no data, hence it takes precedence over the cache.
+                            FileUtil.shareFileTree(directory, staging).thenApply { true }
+                        } else if (TemplateCache.isEnabled() && TemplateCache.install(this, staged)) {
+                            CompletableFuture.completedFuture(true)
+                        } else if (isPacked()) {
+                            CompletableFuture.supplyAsync(Supplier {
+                                ArchiveUtil.unpack(archive, staged)
+                                true
+                            }, Executor { it.run() })
+                        } else {
+                            FileUtil.cloneFileTree(directory, staging)
+                        }
+
+                        installing = true
+                        future.handleAsync {
                             result, t ->
 
-                            if (!result || t != null) {
+                            TemplateSync.release(directory, hold)
+
+                            try {
+                                if (t != null || result != true) {
+                                    throw t ?: IOException("Clone is incomplete.")
+                                }
+
+                                // Deal with Bukkit as it doesn't like to have replicated worlds.
+                                Files.deleteIfExists(staged.resolve("uid.dat"))
+                                Files.move(staged, outcome, StandardCopyOption.ATOMIC_MOVE)
+                                Files.delete(staging)
+                            } catch (e: Throwable) {
+                                e.printStackTrace()
                                 Main.logger.warning("Failed to clone world!")
 
-                                if (t != null) {
-                                    throw t
-                                } else {
-                                    scheduler.runTask(plugin, Runnable {
-                                        game.forceStop(error = true)
-                                    })
-                                    return@handleAsync false
+                                if (Files.isDirectory(staging)) {
+                                    FileUtil.deleteFileTree(staging)
                                 }
-                            }
 
-                            // Deal with Bukkit as it doesn't like to have replicated worlds.
-                            outcome.toFile().resolve("uid.dat").delete()
+                                scheduler.runTask(plugin, Runnable {
+                                    giveUp(game, null)
+                                })
+                                return@handleAsync false
+                            }
 
                             scheduler.runTask(plugin, Runnable {
-                                Files.move(
-                                        renamed, directory,
-                                        StandardCopyOption.ATOMIC_MOVE
-                                )
                                 loadWorld(worldName, game, container, regen, callback)
                             })
+                            true
                         }
                     } catch (e: IllegalArgumentException) {
                         if (e.message?.startsWith("source", true) == true) {
                             Main.logger.warning("World folder \'$directory\' inside ${game.name} is missing. Generating blank world...")
                         } else {
                             scheduler.runTask(plugin, Runnable {
-                                game.forceStop(error = true)
+                                giveUp(game, null)
                             })
                             throw RuntimeException("$container doesn't seem to be the world container.", e)
                         }
                     } catch (e: SecurityException) {
-                        game.forceStop(error = true)
+                        scheduler.runTask(plugin, Runnable { giveUp(game, null) })
                         throw RuntimeException("Unable to access map file ($id) for ${game.name}.", e)
                     } catch (e: IOException) {
-                        game.forceStop(error = true)
+                        scheduler.runTask(plugin, Runnable { giveUp(game, null) })
                         throw RuntimeException("Failed to install map file ($id) for ${game.name}.", e)
                     } catch (e: UnsupportedOperationException) {
-                        game.forceStop(error = true)
+                        scheduler.runTask(plugin, Runnable { giveUp(game, null) })
                         throw RuntimeException(e)
                     } catch (e: AtomicMoveNotSupportedException) {
-                        game.forceStop(error = true)
+                        scheduler.runTask(plugin, Runnable { giveUp(game, null) })
                         throw RuntimeException(e)
+                    } finally {
+                        if (!installing) {
+                            TemplateSync.release(directory, hold)
+                        }
                     }
                 }
                 container.toFile().listFiles()?.firstOrNull { it.name == worldName } != null -> {
-                    game.forceStop(error = true)
+                    TemplateSync.release(directory, hold)
+                    scheduler.runTask(plugin, Runnable { giveUp(game, null) })
                     throw FaultyConfiguration("There's an existing map with the same name: $worldName")
                 }
                 else -> {
+                    TemplateSync.release(directory, hold)
                     loadWorld(worldName, game, container, regen, callback)
                 }
             }
@@ -253,23 +372,21 @@ class GameMap internal constructor(
      *
      * Remaining players are kicked out of the server.
      * Their destination is configuration-dependent.
+     * World directory is moved into [WorldTrash] at once and deleted in background.
      *
-     * @param async Determines if the task is conducted asynchronously or not.
      * @throws RuntimeException is thrown if the task fails.
      * @throws NullPointerException is thrown if world is not initialized.
      */
-    internal fun destruct(async: Boolean = true) {
+    internal fun destruct() {
         world!!.players.forEach { it.kickPlayer("Destructing the world! Please join again.") }
+        Game.unindexWorld(world!!)
 
         try {
             if (Bukkit.unloadWorld(world!!, false)) {
-                val run = Runnable { FileUtil.deleteFileTree(worldPath!!) }
-
-                if (async) {
-                    Bukkit.getScheduler().runTaskAsynchronously(Main.instance, run)
-                } else {
-                    run.run()
-                }
+                tickets?.discard()
+                tickets = null
+                WorldTrash.trash(worldPath!!)
+                GameIDAllocator.release(worldID)
                 isGenerated = false
             } else {
                 throw RuntimeException("Failed to unload world \'$worldName\' at $worldPath")
@@ -279,6 +396,37 @@ class GameMap internal constructor(
         }
     }
 
+    /**
+     * Give up generating this map as its game has been closed.
+     * Installation in progress runs to the end, and then its world is discarded instead of being loaded.
+     * ID of the world is released only after that, so that it's never taken while the files are still there.
+     */
+    internal fun abandon() {
+        abandoned = true
+    }
+
+    /**
+     * End the generation which didn't bring a world, as it has failed or has been [abandoned][abandon].
+     * The world directory at [path] is trashed, if any, before the ID is released.
+     * This must be called in main thread.
+     */
+    private fun giveUp(game: Game, path: Path?) {
+        if (path != null && Files.isDirectory(path)) {
+            WorldTrash.trash(path)
+        }
+
+        if (game.pendingMap === this) {
+            game.pendingMap = null
+        }
+
+        if (abandoned) {
+            GameIDAllocator.release(worldID)
+        } else {
+            // Game releases the ID as it terminates.
+            game.forceStop(error = true)
+        }
+    }
+
     @Suppress("DEPRECATION")
     private fun loadWorld(
             worldName: String,
@@ -290,6 +438,11 @@ class GameMap internal constructor(
         val scheduler = Bukkit.getScheduler()
 
         scheduler.runTask(Main.instance, Runnable {
+            if (abandoned) {
+                giveUp(game, container.resolve(worldName))
+                return@Runnable
+            }
+
             val creator = WorldCreator(worldName)
             val world: World?
             val lastMap = game.map
@@ -298,17 +451,28 @@ class GameMap internal constructor(
             // Assign worldName so that WorldInitEvent detects new world.
             this.worldName = worldName
             game.map = this
-            creator.type(WorldType.FLAT)
+            Game.expectWorld(worldName, game)
+            profile.apply(creator)
             world = creator.createWorld()
             Main.logger.info("World $worldName generated.")
 
             if (world == null) {
+                Game.discardWorld(worldName)
                 game.map = lastMap
-                game.forceStop(error = true)
                 Main.logger.warning("Unable to load world $worldName for ${game.name}")
+                giveUp(game, container.resolve(worldName))
                 return@Runnable
             }
 
+            // In case WorldInitEvent was missed.
+            Game.indexWorld(world)
+
+            // World is loaded, hence it's now up to destruct() to release the ID.
+            this.isGenerated = true
+            this.world = world
+            this.worldPath = container.resolve(worldName)
+            game.pendingMap = null
+
             // Apply gamerules and difficulty
             worldService.gamerules.forEach { (rule, value) ->
                 world.setGameRuleValue(rule, value)
@@ -316,63 +480,28 @@ class GameMap internal constructor(
             world.difficulty = worldService.difficulty
 
             fun init() {
-                val futures = LinkedList<CompletableFuture<Chunk>>()
-
                 // Setup world
                 world.isAutoSave = false
                 world.setGameRule(GameRule.DO_IMMEDIATE_RESPAWN, true)
-                this.isGenerated = true
-                this.world = world
-                this.worldPath = container.resolve(worldName)
 
-                // Asynchronously load chunks referred by coordinate tags.
-                tagRegistry.getCoordTags().forEach {
-                    loop@ for (capture in it.getCaptures(id)) {
-
-                        val cursorList: List<Pair<Int, Int>> = when (capture) {
-                            is SpawnCaptureService -> {
-                                val xCursor = floor(capture.x / 16).toInt()
-                                val zCursor = floor(capture.z / 16).toInt()
-
-                                listOf(Pair(xCursor, zCursor))
-                            }
-                            is AreaCaptureService -> {
-                                var xCursor = WorldModuleService.getChunkX(capture.x1)
-                                var zCursor = WorldModuleService.getChunkZ(capture.z1)
-                                val pairs = LinkedList<Pair<Int, Int>>()
-
-                                do {
-                                    do {
-                                        pairs.add(Pair(xCursor, zCursor))
-                                        xCursor++
-                                    } while (xCursor * 16 <= capture.x2)
-
-                                    xCursor = WorldModuleService.getChunkX(capture.x1)
-                                    zCursor++
-                                } while (zCursor * 16 <= capture.z2)
-
-                                pairs
-                            }
-                            else -> continue@loop
-                        }
-
-                        cursorList.forEach { cursor ->
-                            futures.add(
-                                    world.getChunkAtAsync(cursor.first, cursor.second).exceptionally {
-                                        t -> t.printStackTrace()
-                                        null
-                                    })
-                        }
-                    }
-                }
-
-                // Finish the process. All chunks are loaded.
-                CompletableFuture.allOf(*futures.toTypedArray()).thenAccept {
-                    futures.forEach {
-                        it.join()?.addPluginChunkTicket(Main.instance)
-                    }
+                // Asynchronously load chunks referred by coordinate tags. Each of them is held as it's loaded.
+                val tickets = ChunkTicketManager(world)
+                val preloader = ChunkPreloader(world, id, tagRegistry, tickets)
 
+                this.tickets = tickets
+                preloader.start(Consumer {
+                    profile.apply(world)
                     callback?.accept(world)
+                })
+
+                // Let the chunks go once players have spawned in game.
+                if (!game.editMode) {
+                    GameTask(game, GamePhase.PLAYING).schedule {
+                        scheduler.runTaskLater(Main.instance, Runnable {
+                            tickets.release(ChunkTicketManager.SPAWN)
+                            tickets.release(ChunkTicketManager.AREA)
+                        }, SPAWN_WAVE_TICKS)
+                    }
                 }
             }
 
@@ -382,7 +511,7 @@ class GameMap internal constructor(
                 } else {
                     val teleportCause = PlayerTeleportEvent.TeleportCause.PLUGIN
                     val teleportFutures = LinkedList<CompletableFuture<Boolean>>()
-                    val players = game.players.mapNotNull { Bukkit.getPlayer(it) }
+                    val players = game.getPlayers()
 
                     if (players.isNotEmpty()) {
 
@@ -0,0 +1,223 @@
+package com.github.lazoyoung.craftgames.impl.game
+
+import com.github.lazoyoung.craftgames.impl.Main
+import org.bukkit.entity.Player
+import java.util.*
+import kotlin.collections.HashMap
+
+/**
+ * Keeps lobby instances of a game generated in advance,
+ * so that players can join them without waiting for map generation.
+ *
+ * Instances on standby stay in [GamePhase.LOBBY] until a player joins.
+ * A replacement is generated in the background whenever one is taken.
+ */
+class GamePool private constructor(
+        val gameName: String,
+
+        /** Number of instances to keep ready **/
+        val minReady: Int,
+
+        /** Pool stops generating once the game has this many live instances. (0 for no limit) **/
+        val max: Int
+) {
+
+    /** Instances which are generated and waiting for players **/
+    private val ready = LinkedList<Game>()
+
+    /** Instances which are being generated **/
+    private val warming = LinkedList<Game>()
+
+    /** Number of instances which are not constructed yet **/
+    private var opening = 0
+
+    private var disposed = false
+
+    /** Number of joins served by a standby instance **/
+    var hits = 0L
+        private set
+
+    /** Number of joins which had to wait for a new instance, as none was on standby **/
+    var misses = 0L
+        private set
+
+    /** Number of instances that became ready **/
+    var readyCount = 0L
+        private set
+
+    /** Total time spent to generate standby instances (in milliseconds) **/
+    private var readyTime = 0L
+
+    companion object {
+        /** Key: Game name, Value: GamePool instance **/
+        private val pools = HashMap<String, GamePool>()
+
+        internal fun get(gameName: String): GamePool? {
+            return pools[gameName]
+        }
+
+        internal fun getPools(): List<GamePool> {
+            return pools.values.toList()
+        }
+
+        /**
+         * Find a standby instance of any game which the [player] can join. This has no side effect.
+         *
+         * @return A standby instance, or null if there's none available.
+         */
+        internal fun peekAny(player: Player): Game? {
+            return pools.values.shuffled().asSequence()
+                    .mapNotNull { it.peek(player) }
+                    .firstOrNull()
+        }
+
+        /**
+         * Build pools from config.yml. This must be called in main thread.
+         *
+         * Pools whose setting has changed are replaced and their standby instances are closed.
+         */
+        internal fun load() {
+            val settings = Main.getConfig().pools
+            val iter = pools.values.iterator()
+
+            while (iter.hasNext()) {
+                val pool = iter.next()
+                val setting = settings[pool.gameName]
+
+                if (setting == null || setting.minReady != pool.minReady || setting.max != pool.max) {
+                    pool.dispose()
+                    iter.remove()
+                }
+            }
+
+            for ((name, setting) in settings) {
+                if (!pools.containsKey(name)) {
+                    val pool = GamePool(name, setting.minReady, setting.max)
+                    pools[name] = pool
+                    pool.replenish()
+                }
+            }
+        }
+    }
+
+    /**
+     * Number of instances ready to serve players.
+     */
+    fun getReadySize(): Int {
+        return ready.size
+    }
+
+    /**
+     * Number of instances being generated.
+     */
+    fun getWarmingSize(): Int {
+        return warming.size + opening
+    }
+
+    /**
+     * Average time to make an instance ready. (in milliseconds)
+     */
+    fun getAverageTimeToReady(): Long {
+        return if (readyCount > 0) readyTime / readyCount else 0L
+    }
+
+    /**
+     * Find a standby instance which the [player] can join. This has no side effect.
+     * The instance leaves the pool once the player actually joins it. See [claim]
+     *
+     * @return A standby instance, or null if there's none available.
+     */
+    internal fun peek(player: Player): Game? {
+        return ready.firstOrNull { it.phase == GamePhase.LOBBY && it.canJoin(player) }
+    }
+
+    /**
+     * Record a join which is served by a new instance, because none was on standby.
+     * Standby instances are generated in the background to catch up with the demand.
+     */
+    internal fun miss() {
+        misses++
+        replenish()
+    }
+
+    /**
+     * Remove the [game] from this pool as it's no longer on standby.
+     * A replacement is generated in the background.
+     */
+    internal fun claim(game: Game) {
+        if (!game.standby) {
+            return
+        }
+
+        game.standby = false
+
+        if (ready.remove(game)) {
+            hits++
+        }
+
+        warming.remove(game)
+        replenish()
+    }
+
+    /**
+     * Generate instances until the pool has [minReady] of them.
+     */
+    private fun replenish() {
+        if (disposed) {
+            return
+        }
+
+        var deficit = minReady - ready.size - warming.size - opening
+        var live = Game.find(gameName, false).size + opening
+
+        while (deficit-- > 0 && (max < 1 || live++ < max)) {
+            warm()
+        }
+    }
+
+    private fun warm() {
+        val start = System.currentTimeMillis()
+
+        opening++
+        Game.openNew(gameName, editMode = false).whenComplete { game, t ->
+            opening--
+
+            if (t != null) {
+                t.printStackTrace()
+                Main.logger.warning("Failed to prepare standby instance of $gameName.")
+                return@whenComplete
+            }
+
+            if (disposed) {
+                game.close()
+                return@whenComplete
+            }
+
+            game.standby = true
+            warming.add(game)
+
+            GameTask(game, GamePhase.LOBBY).schedule {
+                if (warming.remove(game)) {
+                    ready.add(game)
+                    readyTime += System.currentTimeMillis() - start
+                    readyCount++
+                }
+            }
+
+            GameTask(game, GamePhase.TERMINATE).schedule {
+                warming.remove(game)
+                ready.remove(game)
+            }
+        }
+    }
+
+    /**
+     * Close every instance on standby and stop generating new ones.
+     */
+    private fun dispose() {
+        disposed = true
+        ready.plus(warming).filter { it.standby }.forEach { it.close() }
+        ready.clear()
+        warming.clear()
+    }
+}
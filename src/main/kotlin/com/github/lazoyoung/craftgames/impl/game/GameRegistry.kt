@@ -0,0 +1,83 @@
+package com.github.lazoyoung.craftgames.impl.game
+
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentSkipListMap
+
+/**
+ * Registry of live games, indexed by ID, game name, edit mode and phase.
+ *
+ * Every lookup returns a snapshot, which is safe to iterate from any thread
+ * while games come and go. Mutations are serialized.
+ */
+internal class GameRegistry {
+
+    /** Key: ID, Value: Game instance **/
+    private val byID = ConcurrentSkipListMap<Int, Game>()
+
+    /** Key: Game name, Value: Instances of the game **/
+    private val byName = ConcurrentHashMap<String, MutableSet<Game>>()
+
+    /** Key: Whether in edit mode, Value: Instances in that mode **/
+    private val byEditMode = ConcurrentHashMap<Boolean, MutableSet<Game>>()
+
+    /** Key: Phase, Value: Instances in that phase **/
+    private val byPhase = ConcurrentHashMap<GamePhase, MutableSet<Game>>()
+
+    fun get(id: Int): Game? {
+        return byID[id]
+    }
+
+    /**
+     * Find live games with the given filters. Pass null to any of filters to ignore it.
+     *
+     * @return A snapshot of games found, sorted by their ID.
+     */
+    fun find(name: String?, isEditMode: Boolean?, phase: GamePhase?): List<Game> {
+        val candidates = ArrayList<Set<Game>>(3)
+
+        name?.let { candidates.add(byName[it] ?: return emptyList()) }
+        isEditMode?.let { candidates.add(byEditMode[it] ?: return emptyList()) }
+        phase?.let { candidates.add(byPhase[it] ?: return emptyList()) }
+
+        val smallest = candidates.minBy { it.size }
+                ?: return byID.values.toList()
+
+        return smallest.filter {
+            (name == null || it.name == name)
+                    && (isEditMode == null || it.editMode == isEditMode)
+                    && (phase == null || it.phase == phase)
+        }.sortedBy { it.id }
+    }
+
+    @Synchronized
+    fun register(game: Game) {
+        byID[game.id] = game
+        indexOf(byName, game.name).add(game)
+        indexOf(byEditMode, game.editMode).add(game)
+        indexOf(byPhase, game.phase).add(game)
+    }
+
+    @Synchronized
+    fun unregister(game: Game) {
+        if (byID.remove(game.id, game)) {
+            byName[game.name]?.remove(game)
+            byEditMode[game.editMode]?.remove(game)
+            GamePhase.values().forEach { byPhase[it]?.remove(game) }
+        }
+    }
+
+    /**
+     * Move the [game] to the index of its current phase.
+     */
+    @Synchronized
+    fun updatePhase(game: Game, from: GamePhase) {
+        if (byID[game.id] === game && from != game.phase) {
+            byPhase[from]?.remove(game)
+            indexOf(byPhase, game.phase).add(game)
+        }
+    }
+
+    private fun <K> indexOf(index: ConcurrentHashMap<K, MutableSet<Game>>, key: K): MutableSet<Game> {
+        return index.computeIfAbsent(key) { ConcurrentHashMap.newKeySet() }
+    }
+}
@@ -7,8 +7,10 @@ import com.github.lazoyoung.craftgames.impl.Main
 import com.github.lazoyoung.craftgames.impl.exception.FaultyConfiguration
 import com.github.lazoyoung.craftgames.impl.exception.GameNotFound
 import com.github.lazoyoung.craftgames.impl.exception.MapNotFound
+import com.github.lazoyoung.craftgames.impl.script.groovy.GameScriptGroovy
 import com.github.lazoyoung.craftgames.impl.tag.TagRegistry
 import com.github.lazoyoung.craftgames.impl.util.DatapackUtil
+import com.github.lazoyoung.craftgames.impl.util.FileUtil
 import com.nisovin.shopkeepers.api.shopkeeper.admin.regular.RegularAdminShopkeeper
 import com.nisovin.shopkeepers.shopkeeper.offers.SKTradingOffer
 import org.bukkit.Bukkit
@@ -23,38 +25,181 @@ import java.nio.file.StandardCopyOption
 /**
  * @throws GameNotFound is thrown if game cannot be resolved by [gameName].
  */
-class GameResource internal constructor(private val gameName: String) {
+class GameResource private constructor(
+        private val gameName: String,
+        private val shared: Shared
+) {
 
-    internal val layout = GameLayout(gameName)
-    val tagRegistry = TagRegistry(layout)
-    val mapRegistry = GameMap.Registry(layout, tagRegistry)
+    /**
+     * Load resources from disk without sharing them with other instances.
+     *
+     * @throws GameNotFound is thrown if game cannot be resolved by [gameName].
+     */
+    internal constructor(gameName: String) : this(gameName, Shared(gameName, null, null))
+
+    internal val layout = shared.layout
+    val tagRegistry = shared.tagRegistry
+    val mapRegistry = GameMap.Registry(shared.mapRegistry)
     val mainScript: GameScript
     val commandScript: GameScript?
-    internal val kitData = HashMap<String, ByteArray>()
-    private val kitFiles = HashMap<String, File>()
+    /** Copy of the shared kits, so that changes made by this instance don't leak into the others. **/
+    internal val kitData = HashMap(shared.kitData)
+    private val kitFiles = shared.kitFiles
     private val namespace = gameName.toLowerCase()
+    private var released = false
 
-    init {
-        /*
-         * Load kit
+    /**
+     * Parsed resources which are identical across instances of the same game.
+     * Instances in play mode share them through [acquire], hence they must not be modified.
+     */
+    private class Shared(gameName: String, val hash: String?, var stamp: String?) {
+        val layout = GameLayout(gameName)
+        val tagRegistry = TagRegistry(layout)
+        val mapRegistry = GameMap.Registry(layout, tagRegistry)
+        val kitData: Map<String, ByteArray>
+        val kitFiles: Map<String, File>
+        var references = 0
+
+        init {
+            val kitData = HashMap<String, ByteArray>()
+            val kitFiles = HashMap<String, File>()
+
+            layout.kitDir.toFile().let {
+                it.mkdirs()
+                it.listFiles()?.forEach { file ->
+                    if (file.extension != "kit")
+                        return@forEach
+
+                    val name = file.nameWithoutExtension
+
+                    try {
+                        kitData[name] = Files.readAllBytes(file.toPath())
+                        kitFiles[name] = file
+                    } catch (e: IOException) {
+                        throw RuntimeException("Failed to read kit file.", e)
+                    }
+                }
+            }
+
+            this.kitData = kitData
+            this.kitFiles = kitFiles
+        }
+    }
+
+    companion object {
+        /** Key: Game name, Value: Shared resource **/
+        private val cache = HashMap<String, Shared>()
+
+        /**
+         * Get resources for a new instance of the game.
+         *
+         * Layout, tags, maps and kits are shared with other live instances
+         * as long as their files remain unchanged. Edit mode always reads the files again,
+         * because editors modify them.
+         *
+         * @param gameName Name of the game.
+         * @param editMode Whether the resource is going to be edited.
+         * @throws GameNotFound is thrown if game cannot be resolved by [gameName].
          */
-        layout.kitDir.toFile().let {
-            it.mkdirs()
-            it.listFiles()?.forEach { file ->
-                if (file.extension != "kit")
-                    return@forEach
+        internal fun acquire(gameName: String, editMode: Boolean): GameResource {
+            if (editMode) {
+                return GameResource(gameName)
+            }
 
-                val name = file.nameWithoutExtension
+            val files = getFiles(gameName)
+            val stamp = stamp(files)
+
+            // Files are read only if their size or modification time has changed.
+            retain(gameName, stamp) { it.stamp == stamp }?.let {
+                return GameResource(gameName, it)
+            }
 
+            // Digest and parse without the lock, so that other games are not held back.
+            val hash = digest(files)
+            val shared = retain(gameName, stamp) { it.hash == hash }
+                    ?: Shared(gameName, hash, stamp).let { parsed ->
+                        synchronized(cache) {
+                            // Another instance may have published the same files meanwhile.
+                            val present = cache[gameName]?.takeIf { it.hash == hash }
+                                    ?: parsed.also { cache[gameName] = it }
+
+                            present.stamp = stamp
+                            present.references++
+                            present
+                        }
+                    }
+
+            return GameResource(gameName, shared)
+        }
+
+        /**
+         * Discard the cached resource of the game.
+         * Live instances keep their copy, while new instances read the files again.
+         */
+        internal fun invalidate(gameName: String) {
+            synchronized(cache) {
+                cache.remove(gameName)
+            }
+        }
+
+        /**
+         * List every file the shared resource is parsed from.
+         *
+         * @throws GameNotFound is thrown if game cannot be resolved by [gameName].
+         */
+        private fun getFiles(gameName: String): List<File> {
+            val layoutPathname = Main.getConfig().games[gameName]
+                    ?: throw GameNotFound("Game layout is not defined in config.yml")
+            val layoutFile = Main.instance.dataFolder.resolve(layoutPathname)
+            val dataDir = layoutFile.parentFile.resolve("_data")
+            val files = ArrayList<File>()
+
+            files.add(layoutFile)
+            files.add(dataDir.resolve("coordinate-tags.yml"))
+            files.add(dataDir.resolve("item-tags.yml"))
+            dataDir.resolve("kit").listFiles()
+                    ?.filter { it.extension == "kit" }
+                    ?.sortedBy { it.name }
+                    ?.let { files.addAll(it) }
+
+            return files
+        }
+
+        /**
+         * Describe the [files] by name, size and modification time, without reading them.
+         */
+        private fun stamp(files: List<File>): String {
+            return files.joinToString("|") { "${it.name}:${it.length()}:${it.lastModified()}" }
+        }
+
+        /**
+         * Take a reference to the cached resource of the game if it satisfies [predicate].
+         * The resource is then marked with the current [stamp] of its files.
+         */
+        private fun retain(gameName: String, stamp: String, predicate: (Shared) -> Boolean): Shared? {
+            synchronized(cache) {
+                return cache[gameName]?.takeIf(predicate)?.also {
+                    it.stamp = stamp
+                    it.references++
+                }
+            }
+        }
+
+        /**
+         * Compute a digest over the content of [files].
+         */
+        private fun digest(files: List<File>): String {
+            return files.joinToString("|") {
                 try {
-                    kitData[name] = Files.readAllBytes(file.toPath())
-                    kitFiles[name] = file
+                    "${it.name}:${if (it.isFile) FileUtil.digest(it.toPath()) else ""}"
                 } catch (e: IOException) {
-                    throw RuntimeException("Failed to read kit file.", e)
+                    throw RuntimeException("Failed to read file: ${it.path}", e)
                 }
             }
         }
+    }
 
+    init {
         /*
          * Load scripts
          */
@@ -81,6 +226,29 @@ class GameResource internal constructor(private val gameName: String) {
 
         this.mainScript = ScriptFactory.get(mainScript, mainCompiler)
         this.commandScript = commandScript?.let { ScriptFactory.get(it, commandCompiler) }
+
+        for (script in listOfNotNull(this.mainScript, this.commandScript)) {
+            if (script is GameScriptGroovy) {
+                script.cacheDir = layout.scriptCacheDir
+            }
+        }
+    }
+
+    /**
+     * Give up the shared resource. Cached resource is discarded once no instance refers to it.
+     */
+    internal fun release() {
+        if (released || shared.hash == null) {
+            return
+        }
+
+        released = true
+
+        synchronized(cache) {
+            if (--shared.references < 1 && cache[gameName] === shared) {
+                cache.remove(gameName)
+            }
+        }
     }
 
     internal fun saveToDisk() {
@@ -0,0 +1,109 @@
+package com.github.lazoyoung.craftgames.impl.game
+
+import com.github.lazoyoung.craftgames.api.PlayerType
+import org.bukkit.entity.Player
+import java.util.*
+import kotlin.collections.LinkedHashMap
+
+/**
+ * Members of a game partitioned by [PlayerType].
+ *
+ * Membership changes only upon join, leave and transition to spectator.
+ * Views are immutable and cached until the next change, so reading them doesn't allocate.
+ *
+ * Players who are about to join hold a seat by [reserve] until they become a member.
+ */
+internal class GameRoster {
+
+    /** Key: Player UUID, Value: Player type **/
+    private val types = HashMap<UUID, PlayerType>()
+
+    /** Key: Player type, Value: Members of the type **/
+    private val members = EnumMap<PlayerType, LinkedHashMap<UUID, Player>>(PlayerType::class.java)
+
+    /** Key: Player type, Value: Cached view **/
+    private val views = EnumMap<PlayerType, List<Player>>(PlayerType::class.java)
+
+    /** Every member in the order of join **/
+    private val all = LinkedHashMap<UUID, Player>()
+
+    private var allView: List<Player>? = null
+
+    /** Players who are about to join **/
+    private val reserved = HashSet<UUID>()
+
+    /** Number of members and reserved seats **/
+    val size: Int
+        get() = all.size + reserved.size
+
+    init {
+        PlayerType.values().forEach { members[it] = LinkedHashMap() }
+    }
+
+    fun contains(uid: UUID): Boolean {
+        return all.containsKey(uid)
+    }
+
+    /**
+     * Hold a seat for the player who is about to join.
+     * The seat is released once the player becomes a member or is [removed][remove].
+     */
+    fun reserve(uid: UUID) {
+        if (!all.containsKey(uid)) {
+            reserved.add(uid)
+        }
+    }
+
+    fun getType(uid: UUID): PlayerType? {
+        return types[uid]
+    }
+
+    /**
+     * Put the [player] into this roster as the given [type].
+     * If the [player] is already a member, it's moved to the [type].
+     */
+    fun put(player: Player, type: PlayerType) {
+        val uid = player.uniqueId
+        val last = types.put(uid, type)
+
+        reserved.remove(uid)
+
+        if (last != null) {
+            members.getValue(last).remove(uid)
+            views.remove(last)
+        } else {
+            all[uid] = player
+            allView = null
+        }
+
+        members.getValue(type)[uid] = player
+        views.remove(type)
+    }
+
+    fun remove(uid: UUID) {
+        reserved.remove(uid)
+
+        val type = types.remove(uid) ?: return
+
+        members.getValue(type).remove(uid)
+        views.remove(type)
+        all.remove(uid)
+        allView = null
+    }
+
+    /**
+     * Get every member regardless of type.
+     */
+    fun getAll(): List<Player> {
+        return allView ?: Collections.unmodifiableList(ArrayList(all.values)).also { allView = it }
+    }
+
+    /**
+     * Get members of the given [type].
+     */
+    fun get(type: PlayerType): List<Player> {
+        return views[type] ?: Collections.unmodifiableList(ArrayList(members.getValue(type).values)).also {
+            views[type] = it
+        }
+    }
+}
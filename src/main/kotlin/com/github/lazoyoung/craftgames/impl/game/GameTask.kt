@@ -7,6 +7,9 @@ class GameTask(
 
     private lateinit var task: Runnable
 
+    internal var isDone = false
+        private set
+
     /**
      * Schedule a [task] to be executed upon transition to [phase].
      *
@@ -16,10 +19,11 @@ class GameTask(
      */
     fun schedule(task: () -> Unit) {
         this.task = Runnable(task)
-        game.taskList.add(this)
+        game.scheduleTask(this)
     }
 
     internal fun execute() {
+        isDone = true
         task.run()
     }
 }
\ No newline at end of file
@@ -0,0 +1,249 @@
+package com.github.lazoyoung.craftgames.impl.game
+
+import com.github.lazoyoung.craftgames.impl.Main
+import com.github.lazoyoung.craftgames.impl.util.FileUtil
+import java.io.IOException
+import java.nio.file.*
+import java.util.*
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import java.util.stream.Collectors
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+/**
+ * Stores map files by their content, so that identical files are stored once across maps and versions.
+ *
+ * Each file is kept as a blob named after its SHA-1 digest. A stored map is described by its index,
+ * which lists the digest of every file, and is installed by copying the blobs it refers to.
+ * Blobs are never linked into worlds, as a world would write through the link into every map sharing the blob.
+ * Hence install copies every byte of the map: the store saves disk space, but installs read as much as before.
+ * Blobs that are no longer referred by any index are deleted by [collect].
+ * Any number of maps may be installed at once, whereas blobs are written or deleted exclusively.
+ */
+class MapStore {
+
+    /**
+     * Outcome of storing a map.
+     */
+    class Report(
+            /** Number of files in the map **/
+            val files: Int,
+            /** Number of bytes newly written into the store **/
+            val writtenBytes: Long,
+            /** Number of bytes that were already in the store **/
+            val sharedBytes: Long
+    )
+
+    companion object {
+        /** File extension of map indexes **/
+        const val EXTENSION = ".cgindex"
+
+        private val root: Path
+            get() = Main.dataFolder.toPath().resolve("store")
+
+        private val blobDir: Path
+            get() = root.resolve("blobs")
+
+        /** Lists the path of every index written by this store, so that [collect] can find them. **/
+        private val registryFile: Path
+            get() = root.resolve("indexes.txt")
+
+        /** Read by installs, written by [store] and [collect] as they modify blobs **/
+        private val lock = ReentrantReadWriteLock()
+
+        /**
+         * Store the content of [source] directory and write its [index].
+         * Index is written aside and then moved in place, so it's never seen incomplete.
+         * This performs blocking I/O, thus it must not be called in main thread.
+         *
+         * @throws IllegalArgumentException Thrown if source does not indicate a directory
+         * @throws IOException Thrown if I/O process has failed.
+         */
+        fun store(source: Path, index: Path): Report {
+            require(Files.isDirectory(source)) { "source is not a directory!" }
+
+            val startTime = System.currentTimeMillis()
+            val properties = Properties()
+            val temp = index.resolveSibling("${index.fileName}.tmp")
+            var writtenBytes = 0L
+            var sharedBytes = 0L
+            val files = Files.walk(source).use { stream ->
+                stream.filter { Files.isRegularFile(it) && !TemplateSync.isExcluded(it) }
+                        .sorted()
+                        .collect(Collectors.toList())
+            }
+
+            // Source is digested before taking the lock, so installs aren't held back meanwhile.
+            val digests = files.map { FileUtil.digest(it) }
+
+            Files.createDirectories(blobDir)
+
+            lock.write {
+                for ((file, digest) in files.zip(digests)) {
+                    val blob = getBlob(digest)
+                    val size = Files.size(file)
+
+                    if (Files.isRegularFile(blob)) {
+                        sharedBytes += size
+                    } else {
+                        val blobTemp = blob.resolveSibling("$digest.tmp")
+
+                        Files.createDirectories(blob.parent)
+                        Files.copy(file, blobTemp, StandardCopyOption.REPLACE_EXISTING)
+                        Files.move(blobTemp, blob, StandardCopyOption.ATOMIC_MOVE)
+                        writtenBytes += size
+                    }
+
+                    properties.setProperty(source.relativize(file).joinToString("/"), "$size:$digest")
+                }
+
+                try {
+                    Files.newBufferedWriter(temp).use { properties.store(it, "CraftGames map index: size:sha1") }
+                    Files.move(temp, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+                } finally {
+                    Files.deleteIfExists(temp)
+                }
+
+                val registry = readRegistry()
+
+                if (registry.add(index.toAbsolutePath().normalize().toString())) {
+                    writeRegistry(registry)
+                }
+            }
+
+            Main.logger.info(String.format("Stored %s: %d files, %.1f MB written, %.1f MB shared in %d ms",
+                    index.fileName, files.size, writtenBytes / 1048576.0, sharedBytes / 1048576.0,
+                    System.currentTimeMillis() - startTime))
+            return Report(files.size, writtenBytes, sharedBytes)
+        }
+
+        /**
+         * Install the map described by [index] into [target] directory.
+         * Blobs are read under the read lock, so [collect] never deletes them halfway.
+         * This performs blocking I/O, thus it must not be called in main thread.
+         *
+         * @throws IOException Thrown if any blob is missing, or I/O process has failed.
+         */
+        fun install(index: Path, target: Path) {
+            val startTime = System.currentTimeMillis()
+            val targetDir = target.normalize()
+            var copiedBytes = 0L
+            val count = lock.read {
+                val entries = readIndex(index)
+
+                for ((name, digest) in entries) {
+                    val blob = getBlob(digest)
+                    val file = targetDir.resolve(name).normalize()
+
+                    if (!file.startsWith(targetDir)) {
+                        throw IOException("Illegal entry in ${index.fileName}: $name")
+                    }
+
+                    if (!Files.isRegularFile(blob)) {
+                        throw IOException("Blob of $name is missing from the store: $digest")
+                    }
+
+                    Files.createDirectories(file.parent)
+                    Files.copy(blob, file, StandardCopyOption.REPLACE_EXISTING)
+                    file.toFile().setWritable(true, true)
+                    copiedBytes += Files.size(file)
+                }
+
+                entries.size
+            }
+
+            Main.logger.info(String.format("Installed %s: %d files, %.1f MB copied in %d ms",
+                    index.fileName, count, copiedBytes / 1048576.0,
+                    System.currentTimeMillis() - startTime))
+        }
+
+        /**
+         * Delete the blobs which are not referred by any index.
+         * This performs blocking I/O, thus it must not be called in main thread.
+         *
+         * @return Number of blobs deleted.
+         */
+        fun collect(): Int {
+            if (!Files.isDirectory(blobDir)) {
+                return 0
+            }
+
+            lock.write {
+                val registry = readRegistry()
+                val referred = HashSet<String>()
+                var count = 0
+
+                // Forget the indexes which have been deleted.
+                if (registry.removeIf { !Files.isRegularFile(Paths.get(it)) }) {
+                    writeRegistry(registry)
+                }
+
+                for (index in registry) {
+                    try {
+                        referred.addAll(readIndex(Paths.get(index)).values)
+                    } catch (e: IOException) {
+                        // Deleting blobs of an unreadable index may ruin the map.
+                        Main.logger.warning("Skipping garbage collection. Unable to read ${index}: ${e.message}")
+                        return 0
+                    }
+                }
+
+                val blobs = Files.walk(blobDir).use { stream ->
+                    stream.filter { Files.isRegularFile(it) }.collect(Collectors.toList())
+                }
+
+                for (blob in blobs) {
+                    if (!referred.contains(blob.fileName.toString())) {
+                        Files.delete(blob)
+                        count++
+                    }
+                }
+
+                if (count > 0) {
+                    Main.logger.info("Deleted $count blobs from map store.")
+                }
+                return count
+            }
+        }
+
+        /**
+         * @return Key: Relative path, Value: Digest
+         */
+        private fun readIndex(index: Path): Map<String, String> {
+            val properties = Properties()
+            val entries = TreeMap<String, String>()
+
+            Files.newBufferedReader(index).use { properties.load(it) }
+
+            for (name in properties.stringPropertyNames()) {
+                val digest = properties.getProperty(name).substringAfter(':', "")
+
+                if (digest.isEmpty()) {
+                    throw IOException("Illegal entry in ${index.fileName}: $name")
+                }
+                entries[name] = digest
+            }
+            return entries
+        }
+
+        private fun readRegistry(): LinkedHashSet<String> {
+            return if (Files.isRegularFile(registryFile)) {
+                LinkedHashSet(Files.readAllLines(registryFile).filter { it.isNotBlank() })
+            } else {
+                LinkedHashSet()
+            }
+        }
+
+        private fun writeRegistry(registry: Collection<String>) {
+            val temp = registryFile.resolveSibling("${registryFile.fileName}.tmp")
+
+            Files.createDirectories(root)
+            Files.write(temp, registry)
+            Files.move(temp, registryFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+        }
+
+        private fun getBlob(digest: String): Path {
+            return blobDir.resolve(digest.take(2)).resolve(digest)
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.github.lazoyoung.craftgames.impl.game
+
+import com.github.lazoyoung.craftgames.impl.Main
+import com.github.lazoyoung.craftgames.impl.exception.GameJoinRejectedException
+import com.github.lazoyoung.craftgames.impl.exception.GameNotFound
+import com.github.lazoyoung.craftgames.impl.game.player.PlayerData
+import org.bukkit.Bukkit
+import org.bukkit.entity.Player
+import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import kotlin.collections.HashMap
+
+/**
+ * Routes join requests of a game into its instances, so that lobbies fill up before new ones are opened.
+ *
+ * Each request is a party of players who always join the same instance.
+ * Parties are placed into the instance that will reach minimum players soonest.
+ * A new instance is opened only when none of them can take the party.
+ * Everything here must run in main thread.
+ */
+class MatchmakingQueue private constructor(val gameName: String) {
+
+    private class Request(
+            val party: MutableList<Player>,
+            val future: CompletableFuture<Game>
+    ) {
+        val time = System.currentTimeMillis()
+    }
+
+    /** Requests waiting for an instance, in order of arrival **/
+    private val pending = LinkedList<Request>()
+
+    /** Instance being opened for the pending requests **/
+    private var opening: CompletableFuture<Game>? = null
+
+    /** Number of parties placed into an instance **/
+    var served = 0L
+        private set
+
+    /** Longest time a party has waited (in milliseconds) **/
+    var maxWait = 0L
+        private set
+
+    /** Total time parties have waited (in milliseconds) **/
+    private var totalWait = 0L
+
+    companion object {
+        /** Key: Game name, Value: Queue of the game **/
+        private val queues = HashMap<String, MatchmakingQueue>()
+
+        /**
+         * @throws GameNotFound is thrown if game cannot be resolved by [gameName].
+         */
+        internal fun get(gameName: String): MatchmakingQueue {
+            if (!Main.getConfig().games.containsKey(gameName)) {
+                throw GameNotFound("Game layout is not defined in config.yml")
+            }
+
+            return queues.getOrPut(gameName) { MatchmakingQueue(gameName) }
+        }
+
+        internal fun getQueues(): List<MatchmakingQueue> {
+            return queues.values.toList()
+        }
+
+        /**
+         * Withdraw the [player] from any queue. Rest of the party remains in the queue.
+         */
+        internal fun dequeue(player: Player) {
+            queues.values.forEach { it.remove(player) }
+        }
+    }
+
+    /**
+     * Number of parties waiting for an instance.
+     */
+    fun getPartyDepth(): Int {
+        return pending.size
+    }
+
+    /**
+     * Number of players waiting for an instance.
+     */
+    fun getPlayerDepth(): Int {
+        return pending.sumBy { it.party.size }
+    }
+
+    /**
+     * Average time a party has waited. (in milliseconds)
+     */
+    fun getAverageWait(): Long {
+        return if (served > 0) totalWait / served else 0L
+    }
+
+    /**
+     * Request the [party] to join an instance of this game together.
+     *
+     * @return A future which returns the instance the party has joined.
+     * It completes exceptionally with [GameJoinRejectedException] if any member is not able to join,
+     * or with the failure of [Game.openNew] if an instance cannot be opened.
+     */
+    internal fun enqueue(party: List<Player>): CompletableFuture<Game> {
+        val future = CompletableFuture<Game>()
+        val joinPerm = Bukkit.getPluginCommand("join")!!.permission!!
+
+        for (player in party) {
+            val cause = when {
+                PlayerData.get(player) != null -> GameJoinRejectedException.Cause.PLAYING_OTHER
+                !player.hasPermission(joinPerm) -> GameJoinRejectedException.Cause.NO_PERMISSION
+                pending.any { it.party.contains(player) } -> GameJoinRejectedException.Cause.PLAYING_OTHER
+                else -> null
+            }
+
+            if (cause != null) {
+                future.completeExceptionally(GameJoinRejectedException(player, cause))
+                return future
+            }
+        }
+
+        pending.add(Request(party.toMutableList(), future))
+        dispatch(null)
+        return future
+    }
+
+    private fun remove(player: Player) {
+        val iter = pending.iterator()
+
+        while (iter.hasNext()) {
+            val request = iter.next()
+
+            if (request.party.remove(player) && request.party.isEmpty()) {
+                iter.remove()
+                request.future.cancel(false)
+            }
+        }
+    }
+
+    /**
+     * Place pending parties into instances in order of arrival.
+     *
+     * @param fresh The instance which has just been opened for pending parties.
+     */
+    private fun dispatch(fresh: Game?) {
+        val iter = pending.iterator()
+
+        while (iter.hasNext()) {
+            val request = iter.next()
+            val game = selectInstance(request.party)
+
+            if (game == null) {
+                if (fresh != null && fresh.roster.size == 0) {
+                    // Party doesn't fit into an empty instance.
+                    iter.remove()
+                    request.future.completeExceptionally(GameJoinRejectedException(
+                            request.party.first(), GameJoinRejectedException.Cause.FULL
+                    ))
+                    continue
+                }
+
+                openInstance()
+                return
+            }
+
+            iter.remove()
+            join(request, game, game === fresh)
+        }
+    }
+
+    /**
+     * Make every member of the party in [request] join the [game],
+     * and resolve the request by the outcome of them.
+     *
+     * @param fresh Whether the [game] has been opened for pending parties.
+     */
+    private fun join(request: Request, game: Game, fresh: Boolean) {
+        val joins = request.party.map { player ->
+            game.joinPlayer(player).thenApply { joined ->
+                if (!joined) {
+                    // GameJoinEvent is cancelled.
+                    throw GameJoinRejectedException(player, GameJoinRejectedException.Cause.UNKNOWN)
+                }
+            }
+        }
+
+        CompletableFuture.allOf(*joins.toTypedArray()).whenComplete { _, t ->
+            if (t != null) {
+                request.future.completeExceptionally((t as? CompletionException)?.cause ?: t)
+                return@whenComplete
+            }
+
+            request.future.complete(game)
+
+            if (fresh) {
+                // Party had to wait for the instance.
+                GamePool.get(gameName)?.miss()
+            }
+
+            val wait = System.currentTimeMillis() - request.time
+            totalWait += wait
+            maxWait = maxOf(maxWait, wait)
+            served++
+        }
+    }
+
+    /**
+     * Select the instance which will reach minimum players soonest by taking the party.
+     *
+     * @param party Players who require seats.
+     * @return The best instance, or null if none of them can take the party.
+     */
+    private fun selectInstance(party: List<Player>): Game? {
+        val partySize = party.size
+        var best: Game? = null
+        var bestLack = Int.MAX_VALUE
+        var bestSize = -1
+
+        for (game in Game.find(gameName, false)) {
+            when (game.phase) {
+                GamePhase.INIT, GamePhase.GENERATE, GamePhase.LOBBY -> {}
+                else -> continue
+            }
+
+            if (game.standby) {
+                continue
+            }
+
+            val service = game.getGameService()
+            val size = game.roster.size
+
+            if (size + partySize > service.maxPlayer || !party.all { game.canJoin(it) }) {
+                continue
+            }
+
+            val lack = maxOf(0, service.minPlayer - size - partySize)
+
+            if (lack < bestLack || lack == bestLack && size > bestSize) {
+                best = game
+                bestLack = lack
+                bestSize = size
+            }
+        }
+
+        return best ?: GamePool.get(gameName)?.let { pool ->
+            pool.peek(party.first())?.takeIf { game ->
+                partySize <= game.getGameService().maxPlayer && party.all { game.canJoin(it) }
+            }
+        }
+    }
+
+    private fun openInstance() {
+        if (opening != null) {
+            return
+        }
+
+        val future = Game.openNew(gameName, editMode = false)
+
+        opening = future
+        future.whenComplete { game, t ->
+            opening = null
+
+            if (t != null) {
+                pending.forEach { it.future.completeExceptionally(t) }
+                pending.clear()
+            } else {
+                dispatch(game)
+            }
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package com.github.lazoyoung.craftgames.impl.game
+
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Distribution of time spent in each [GamePhase] across every instance of a game.
+ *
+ * Durations are counted into buckets of milliseconds whose upper bounds are powers of two.
+ * The last bucket counts everything beyond.
+ */
+class PhaseHistogram private constructor() {
+
+    /** Key: Phase, Value: Number of durations per bucket **/
+    private val buckets = EnumMap<GamePhase, LongArray>(GamePhase::class.java)
+
+    /** Key: Phase, Value: Sum of durations in milliseconds **/
+    private val totals = EnumMap<GamePhase, Long>(GamePhase::class.java)
+
+    companion object {
+        const val BUCKET_SIZE = 20
+
+        /** Key: Game name, Value: Histogram **/
+        private val histograms = ConcurrentHashMap<String, PhaseHistogram>()
+
+        internal fun get(gameName: String): PhaseHistogram? {
+            return histograms[gameName]
+        }
+
+        internal fun getGameNames(): List<String> {
+            return histograms.keys.sorted()
+        }
+
+        internal fun record(gameName: String, phase: GamePhase, millis: Long) {
+            histograms.computeIfAbsent(gameName) { PhaseHistogram() }.add(phase, millis)
+        }
+
+        /**
+         * Upper bound (exclusive) of the bucket at [index] in milliseconds.
+         */
+        fun getBucketBound(index: Int): Long {
+            return 1L shl index
+        }
+    }
+
+    @Synchronized
+    fun getCount(phase: GamePhase): Long {
+        return buckets[phase]?.sum() ?: 0L
+    }
+
+    /**
+     * Get a copy of buckets of the [phase]. See [getBucketBound]
+     */
+    @Synchronized
+    fun getBuckets(phase: GamePhase): LongArray {
+        return buckets[phase]?.copyOf() ?: LongArray(BUCKET_SIZE)
+    }
+
+    @Synchronized
+    fun getMean(phase: GamePhase): Long {
+        val count = getCount(phase)
+
+        return if (count > 0) totals.getValue(phase) / count else 0L
+    }
+
+    /**
+     * Estimate the [percentile] of durations in the [phase].
+     *
+     * @param percentile Ranges from 0 to 100.
+     * @return Upper bound of the bucket which the percentile falls into.
+     */
+    @Synchronized
+    fun getPercentile(phase: GamePhase, percentile: Int): Long {
+        val array = buckets[phase] ?: return 0L
+        val threshold = Math.ceil(array.sum() * percentile.coerceIn(0, 100) / 100.0).toLong()
+        var count = 0L
+
+        for (index in array.indices) {
+            count += array[index]
+
+            if (count >= threshold && count > 0) {
+                return getBucketBound(index)
+            }
+        }
+
+        return 0L
+    }
+
+    @Synchronized
+    private fun add(phase: GamePhase, millis: Long) {
+        val array = buckets.getOrPut(phase) { LongArray(BUCKET_SIZE) }
+        var index = 0
+
+        while (index < BUCKET_SIZE - 1 && millis >= getBucketBound(index)) {
+            index++
+        }
+
+        array[index]++
+        totals[phase] = (totals[phase] ?: 0L) + millis
+    }
+}
@@ -0,0 +1,235 @@
+package com.github.lazoyoung.craftgames.impl.game
+
+import com.github.lazoyoung.craftgames.impl.Main
+import java.io.BufferedInputStream
+import java.io.IOException
+import java.nio.file.Files
+import java.nio.file.Path
+import java.util.stream.Collectors
+import java.util.zip.ZipFile
+import java.util.zip.ZipInputStream
+
+/**
+ * Keeps files of recently generated map templates in memory, so that hot maps are installed without reading disk.
+ *
+ * Templates are evicted in least-recently-used order once their total size exceeds the budget
+ * defined in config.yml. A template is invalidated when an editor saves the map,
+ * and is read again if the size or modification time of any file on disk has changed since it was cached.
+ * This is safe to be used from any thread.
+ */
+class TemplateCache {
+
+    private class Template(
+            /** Key: Path relative to world directory, Value: File content **/
+            val files: Map<String, ByteArray>,
+            val size: Long,
+            /** Describes the files on disk at the time they're read. See [scan] **/
+            val stamp: String
+    ) {
+        fun install(target: Path) {
+            for ((name, bytes) in files) {
+                val path = target.resolve(name)
+
+                Files.createDirectories(path.parent)
+                Files.write(path, bytes)
+            }
+        }
+    }
+
+    /**
+     * Files of a map on disk, described without reading them.
+     */
+    private class Scan(
+            /** Name, size and modification time of the files **/
+            val stamp: String,
+            /** Total bytes of the files, or null if it's not known without reading the archive **/
+            val size: Long?
+    )
+
+    companion object {
+        /** Key: Path to map directory, Value: Template in memory **/
+        private val templates = LinkedHashMap<Path, Template>(16, 0.75f, true)
+
+        /** Key: Path to map directory, Value: Stamp and size of the template which exceeded the budget **/
+        private val oversized = HashMap<Path, Pair<String, Long>>()
+
+        /** Total bytes of templates in memory **/
+        var size = 0L
+            private set
+
+        var hits = 0L
+            private set
+
+        var misses = 0L
+            private set
+
+        /** Bytes installed from memory **/
+        var bytesServed = 0L
+            private set
+
+        fun isEnabled(): Boolean {
+            return Main.getConfig().templateCacheBudget > 0
+        }
+
+        @Synchronized
+        fun getTemplateCount(): Int {
+            return templates.size
+        }
+
+        /**
+         * Install the template of [map] into [target] directory.
+         * Template is read from memory if cached. Otherwise, it's read from disk and cached if it fits the budget.
+         * A template that exceeds the budget is remembered until it's modified, so it isn't measured again.
+         *
+         * @return false if the template exceeds the budget, in which case nothing is installed.
+         * @throws IOException is thrown if template cannot be read or installed.
+         */
+        internal fun install(map: GameMap, target: Path): Boolean {
+            val key = getKey(map)
+            val scan = scan(map)
+            val stamp = scan.stamp
+            val budget = Main.getConfig().templateCacheBudget
+            val cached = synchronized(this) {
+                oversized[key]?.let { (oversizedStamp, oversizedSize) ->
+                    if (oversizedStamp == stamp && oversizedSize > budget) {
+                        return false
+                    }
+                }
+
+                templates[key]?.takeIf { it.stamp == stamp } ?: run {
+                    // Template has been modified on disk.
+                    templates.remove(key)?.let { size -= it.size }
+                    null
+                }
+            }
+
+            if (cached != null) {
+                cached.install(target)
+
+                synchronized(this) {
+                    hits++
+                    bytesServed += cached.size
+                }
+                return true
+            }
+
+            val total = scan.size ?: estimateSize(map)
+
+            synchronized(this) {
+                if (total > budget) {
+                    // Map goes straight to disk until it's modified. This is not a miss.
+                    oversized[key] = Pair(stamp, total)
+                    return false
+                }
+
+                oversized.remove(key)
+                misses++
+            }
+
+            val template = read(map, stamp)
+            template.install(target)
+            put(key, template)
+            return true
+        }
+
+        /**
+         * Drop the template of [map] from memory.
+         */
+        @Synchronized
+        internal fun invalidate(map: GameMap) {
+            val key = getKey(map)
+
+            templates.remove(key)?.let { size -= it.size }
+            oversized.remove(key)
+        }
+
+        @Synchronized
+        private fun put(key: Path, template: Template) {
+            templates.put(key, template)?.let { size -= it.size }
+            size += template.size
+
+            val budget = Main.getConfig().templateCacheBudget
+            val iterator = templates.values.iterator()
+
+            while (size > budget && iterator.hasNext()) {
+                size -= iterator.next().size
+                iterator.remove()
+            }
+        }
+
+        private fun getKey(map: GameMap): Path {
+            return map.directory.toAbsolutePath().normalize()
+        }
+
+        /**
+         * Describe the files of [map] on disk by name, size and modification time, without reading them.
+         * Directory of the map is walked once.
+         */
+        private fun scan(map: GameMap): Scan {
+            if (map.isPacked()) {
+                val stamp = "${Files.size(map.archive)}:${Files.getLastModifiedTime(map.archive).toMillis()}"
+                return Scan(stamp, null)
+            }
+
+            val paths = Files.walk(map.directory).use { stream ->
+                stream.filter { Files.isRegularFile(it) && !TemplateSync.isExcluded(it) }
+                        .sorted()
+                        .collect(Collectors.toList())
+            }
+            var total = 0L
+            val stamp = paths.joinToString("|") {
+                val size = Files.size(it)
+
+                total += size
+                "${map.directory.relativize(it)}:$size:${Files.getLastModifiedTime(it).toMillis()}"
+            }
+
+            return Scan(stamp, total)
+        }
+
+        /**
+         * Sum the uncompressed size of entries in the archive of [map].
+         */
+        private fun estimateSize(map: GameMap): Long {
+            return ZipFile(map.archive.toFile()).use { zip ->
+                zip.stream().mapToLong { it.size.coerceAtLeast(0L) }.sum()
+            }
+        }
+
+        private fun read(map: GameMap, stamp: String): Template {
+            val files = LinkedHashMap<String, ByteArray>()
+            var total = 0L
+
+            if (map.isPacked()) {
+                ZipInputStream(BufferedInputStream(Files.newInputStream(map.archive), 1 shl 20)).use { input ->
+                    while (true) {
+                        val entry = input.nextEntry ?: break
+                        val name = entry.name
+
+                        if (entry.isDirectory || TemplateSync.isExcluded(name.substringAfterLast('/'))) {
+                            continue
+                        }
+
+                        if (name.split('/').contains("..")) {
+                            throw IOException("Illegal entry in ${map.archive.fileName}: $name")
+                        }
+
+                        files[name] = input.readBytes()
+                    }
+                }
+            } else {
+                val paths = Files.walk(map.directory).use { stream ->
+                    stream.filter { Files.isRegularFile(it) && !TemplateSync.isExcluded(it) }
+                            .collect(Collectors.toList())
+                }
+
+                for (path in paths) {
+                    files[map.directory.relativize(path).joinToString("/")] = Files.readAllBytes(path)
+                }
+            }
+
+            files.values.forEach { total += it.size }
+            return Template(files, total, stamp)
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package com.github.lazoyoung.craftgames.impl.game
+
+import com.github.lazoyoung.craftgames.impl.Main
+import com.github.lazoyoung.craftgames.impl.util.FileUtil
+import java.io.IOException
+import java.nio.file.*
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.locks.StampedLock
+import java.util.stream.Collectors
+
+/**
+ * Saves the world of an editor session back into its map template, writing only what has changed.
+ *
+ * Every template keeps a manifest of its files: size, modification time and content hash.
+ * Files of the edited world are compared to the manifest, and only those with different content are copied.
+ * The new template is assembled in a staging directory next to the template,
+ * where unchanged files are hard-linked (or copied if links are not supported) from the current template.
+ * Staging directory then replaces the template by two renames. Readers [hold] the template meanwhile,
+ * so they never see it missing or replaced halfway through a copy.
+ */
+class TemplateSync private constructor(
+        private val source: Path,
+        private val template: Path
+) {
+
+    /**
+     * Outcome of a save.
+     */
+    class Report(
+            /** Number of files written **/
+            val written: Int,
+            /** Number of bytes written **/
+            val writtenBytes: Long,
+            /** Number of files reused from the template **/
+            val skipped: Int,
+            /** Number of bytes reused from the template **/
+            val skippedBytes: Long,
+            /** Elapsed time in milliseconds **/
+            val elapsed: Long
+    ) {
+        override fun toString(): String {
+            return String.format("%d files written (%.1f MB), %d files unchanged (%.1f MB) in %d ms",
+                    written, writtenBytes / 1048576.0, skipped, skippedBytes / 1048576.0, elapsed)
+        }
+    }
+
+    /**
+     * Describes a file of the template.
+     */
+    private class Entry(val size: Long, val modified: Long, val hash: String) {
+        override fun toString(): String {
+            return "$size:$modified:$hash"
+        }
+    }
+
+    companion object {
+        /** Name of the manifest file inside a template **/
+        const val MANIFEST = ".craftgames-manifest"
+
+        /** Files that are specific to a running world or a template directory **/
+        internal val excludedFiles = setOf("session.lock", "uid.dat", MANIFEST)
+
+        /**
+         * Check if the file is one of [excludedFiles], which are never copied along with a map.
+         *
+         * @param name Name of the file.
+         */
+        internal fun isExcluded(name: String): Boolean {
+            return excludedFiles.contains(name)
+        }
+
+        internal fun isExcluded(file: Path): Boolean {
+            return isExcluded(file.fileName.toString())
+        }
+
+        /** Key: Template directory, Value: Lock which is held by readers while the template is copied **/
+        private val locks = ConcurrentHashMap<Path, StampedLock>()
+
+        /**
+         * Keep the [template] in place until it's [released][release], so a save can't swap it meanwhile.
+         * This may block until the swap in progress is done. Any number of readers may hold the template.
+         *
+         * @return Stamp to be passed to [release].
+         */
+        internal fun hold(template: Path): Long {
+            return getLock(template).readLock()
+        }
+
+        /**
+         * Let the [template] be swapped again, as it's no longer read.
+         * This may be called in any thread.
+         *
+         * @param stamp Stamp returned by [hold].
+         */
+        internal fun release(template: Path, stamp: Long) {
+            getLock(template).unlockRead(stamp)
+        }
+
+        /**
+         * Move the [template] into [WorldTrash] once no install is reading it.
+         */
+        internal fun trash(template: Path) {
+            val lock = getLock(template)
+            val stamp = lock.writeLock()
+
+            try {
+                WorldTrash.trash(template)
+            } finally {
+                lock.unlockWrite(stamp)
+            }
+        }
+
+        /**
+         * Recover templates from saves that were interrupted, say by crash.
+         * A template which is missing is restored from its old copy. Other leftovers are trashed.
+         * This must be called at startup, before any map is generated or saved.
+         */
+        internal fun purge() {
+            for (gameName in Main.getConfig().games.keys) {
+                val layout = try {
+                    GameLayout(gameName)
+                } catch (e: Exception) {
+                    continue
+                }
+
+                for (entry in layout.config.getMapList("maps")) {
+                    val template = try {
+                        (entry["directory"] as? String)?.let { layout.root.resolve(it).normalize() }
+                    } catch (e: InvalidPathException) {
+                        null
+                    } ?: continue
+
+                    try {
+                        purge(template)
+                    } catch (e: IOException) {
+                        e.printStackTrace()
+                        Main.logger.warning("Failed to recover map template: $template")
+                    }
+                }
+            }
+        }
+
+        private fun purge(template: Path) {
+            val parent = template.parent ?: return
+            val prefix = ".${template.fileName}."
+
+            if (!Files.isDirectory(parent)) {
+                return
+            }
+
+            val leftovers = Files.newDirectoryStream(parent) {
+                val name = it.fileName.toString()
+                name == "${prefix}staging" || name.startsWith("${prefix}old-")
+            }.use { it.toList() }
+            val old = leftovers.filter { it.fileName.toString().startsWith("${prefix}old-") }
+                    .maxBy { Files.getLastModifiedTime(it) }
+
+            // Save was interrupted between the renames of swap().
+            if (old != null && !Files.exists(template)) {
+                Files.move(old, template, StandardCopyOption.ATOMIC_MOVE)
+                Main.logger.warning("Restored map template from interrupted save: $template")
+            }
+
+            leftovers.filter { Files.isDirectory(it) }.forEach { WorldTrash.trash(it) }
+        }
+
+        private fun getLock(template: Path): StampedLock {
+            return locks.computeIfAbsent(template.toAbsolutePath().normalize()) { StampedLock() }
+        }
+
+        /**
+         * Save the content of [source] directory into [template] directory.
+         * This performs blocking I/O, thus it must not be called in main thread.
+         *
+         * @throws IllegalArgumentException Thrown if source does not indicate a directory
+         * @throws IOException Thrown if I/O process has failed.
+         */
+        fun save(source: Path, template: Path): Report {
+            require(Files.isDirectory(source)) { "source is not a directory!" }
+
+            return TemplateSync(source.normalize(), template.normalize()).execute()
+        }
+    }
+
+    private val staging = template.resolveSibling(".${template.fileName}.staging")
+
+    private fun execute(): Report {
+        val startTime = System.currentTimeMillis()
+        val manifest = readManifest()
+        val newManifest = TreeMap<String, Entry>()
+        var written = 0
+        var writtenBytes = 0L
+        var skipped = 0
+        var skippedBytes = 0L
+
+        // Leftover of a save that was interrupted
+        if (Files.isDirectory(staging)) {
+            FileUtil.deleteFileTree(staging)
+        }
+
+        Files.createDirectories(staging)
+
+        try {
+            for (file in listFiles(source)) {
+                val name = source.relativize(file).joinToString("/")
+                val size = Files.size(file)
+                val old = manifest[name]
+                val targetFile = staging.resolve(source.relativize(file).toString())
+                // Size differs, so does content. Hashing is deferred until it's compared.
+                val hash = if (old == null || old.size == size) FileUtil.digest(file) else null
+
+                Files.createDirectories(targetFile.parent)
+
+                if (old != null && old.hash == hash) {
+                    reuse(template.resolve(source.relativize(file).toString()), targetFile)
+                    newManifest[name] = Entry(size, Files.getLastModifiedTime(targetFile).toMillis(), old.hash)
+                    skipped++
+                    skippedBytes += size
+                } else {
+                    Files.copy(file, targetFile, StandardCopyOption.REPLACE_EXISTING)
+                    newManifest[name] = Entry(size, Files.getLastModifiedTime(targetFile).toMillis(),
+                            hash ?: FileUtil.digest(file))
+                    written++
+                    writtenBytes += size
+                }
+            }
+
+            writeManifest(newManifest)
+            swap()
+        } catch (e: Exception) {
+            if (Files.isDirectory(staging)) {
+                FileUtil.deleteFileTree(staging)
+            }
+            throw e
+        }
+
+        val report = Report(written, writtenBytes, skipped, skippedBytes, System.currentTimeMillis() - startTime)
+        Main.logger.info("Saved ${template.fileName}: $report")
+        return report
+    }
+
+    /**
+     * Read the manifest of the template. Entries which no longer describe the file are hashed again,
+     * and a manifest is built from scratch if the template doesn't have one.
+     *
+     * @return Key: Relative path, Value: Entry
+     */
+    private fun readManifest(): Map<String, Entry> {
+        val manifest = HashMap<String, Entry>()
+
+        if (!Files.isDirectory(template)) {
+            return manifest
+        }
+
+        val properties = Properties()
+        val manifestFile = template.resolve(MANIFEST)
+
+        if (Files.isRegularFile(manifestFile)) {
+            try {
+                Files.newBufferedReader(manifestFile).use { properties.load(it) }
+            } catch (e: Exception) {
+                Main.logger.warning("Manifest of ${template.fileName} is corrupted. Rebuilding it.")
+                properties.clear()
+            }
+        }
+
+        for (file in listFiles(template)) {
+            val name = template.relativize(file).joinToString("/")
+            val size = Files.size(file)
+            val modified = Files.getLastModifiedTime(file).toMillis()
+            val recorded = properties.getProperty(name)?.split(':', limit = 3)
+            val entry = if (recorded != null && recorded.size == 3
+                    && recorded[0] == size.toString() && recorded[1] == modified.toString()) {
+                Entry(size, modified, recorded[2])
+            } else {
+                Entry(size, modified, FileUtil.digest(file))
+            }
+
+            manifest[name] = entry
+        }
+
+        return manifest
+    }
+
+    private fun writeManifest(manifest: SortedMap<String, Entry>) {
+        val properties = Properties()
+
+        manifest.forEach { (name, entry) -> properties.setProperty(name, entry.toString()) }
+        Files.newBufferedWriter(staging.resolve(MANIFEST)).use {
+            properties.store(it, "CraftGames map manifest: size:modified:sha1")
+        }
+    }
+
+    /**
+     * Replace the template with staging directory.
+     * This waits for every reader to [release] the template, and new readers wait for the swap.
+     */
+    private fun swap() {
+        val lock = getLock(template)
+        val stamp = lock.writeLock()
+        val old = template.resolveSibling(".${template.fileName}.old-${System.nanoTime()}")
+
+        try {
+            if (!Files.isDirectory(template)) {
+                Files.move(staging, template, StandardCopyOption.ATOMIC_MOVE)
+                return
+            }
+
+            Files.move(template, old, StandardCopyOption.ATOMIC_MOVE)
+
+            try {
+                Files.move(staging, template, StandardCopyOption.ATOMIC_MOVE)
+            } catch (e: IOException) {
+                Files.move(old, template, StandardCopyOption.ATOMIC_MOVE)
+                throw e
+            }
+        } finally {
+            lock.unlockWrite(stamp)
+        }
+
+        WorldTrash.trash(old)
+    }
+
+    /**
+     * Place the unchanged [file] of template at [target], by hard link if possible.
+     */
+    private fun reuse(file: Path, target: Path) {
+        try {
+            Files.createLink(target, file)
+        } catch (e: UnsupportedOperationException) {
+            Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING)
+        } catch (e: FileSystemException) {
+            Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING)
+        }
+    }
+
+    private fun listFiles(root: Path): List<Path> {
+        return Files.walk(root).use { stream ->
+            stream.filter { Files.isRegularFile(it) && !isExcluded(it) }
+                    .sorted()
+                    .collect(Collectors.toList())
+        }
+    }
+}
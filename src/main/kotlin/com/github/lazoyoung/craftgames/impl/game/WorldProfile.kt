@@ -0,0 +1,107 @@
+package com.github.lazoyoung.craftgames.impl.game
+
+import com.github.lazoyoung.craftgames.impl.exception.FaultyConfiguration
+import org.bukkit.Location
+import org.bukkit.World
+import org.bukkit.WorldCreator
+import org.bukkit.WorldType
+import org.bukkit.generator.ChunkGenerator
+import java.util.*
+
+/**
+ * Describes how the world of a map is created, as defined in 'world' section of map entry in layout.yml.
+ *
+ * ```
+ * world:
+ *   generator: void          # 'void' or 'flat' (default: flat)
+ *   keep-spawn-loaded: false # Keep spawn chunks loaded (default: false)
+ *   view-distance: 8         # Distance of chunks sent to players (default: server setting)
+ *   simulation-distance: 4   # Distance of chunks ticking around players (default: server setting)
+ * ```
+ */
+class WorldProfile private constructor(
+        val generator: Generator,
+        val keepSpawnLoaded: Boolean,
+        val viewDistance: Int?,
+        val simulationDistance: Int?
+) {
+
+    enum class Generator {
+        /** Chunks outside the map are filled with nothing **/
+        VOID,
+        /** Chunks outside the map are flat terrain **/
+        FLAT
+    }
+
+    /**
+     * Generates empty chunks, so that nothing is generated beyond the map.
+     */
+    private class VoidGenerator : ChunkGenerator() {
+        override fun generateChunkData(world: World, random: Random, x: Int, z: Int, biome: BiomeGrid): ChunkData {
+            return createChunkData(world)
+        }
+
+        override fun getFixedSpawnLocation(world: World, random: Random): Location? {
+            return Location(world, 0.0, 64.0, 0.0)
+        }
+
+        override fun canSpawn(world: World, x: Int, z: Int): Boolean {
+            return true
+        }
+    }
+
+    companion object {
+        val DEFAULT = WorldProfile(Generator.FLAT, false, null, null)
+
+        /**
+         * Read a profile from the 'world' section of map entry.
+         *
+         * @throws FaultyConfiguration is thrown if any value is invalid.
+         */
+        internal fun read(mapID: String, section: Map<*, *>?): WorldProfile {
+            if (section == null) {
+                return DEFAULT
+            }
+
+            val generatorStr = (section["generator"] as String?)?.toUpperCase()
+            val generator = try {
+                generatorStr?.let { Generator.valueOf(it) } ?: DEFAULT.generator
+            } catch (e: IllegalArgumentException) {
+                throw FaultyConfiguration("Unknown world generator for map $mapID: $generatorStr")
+            }
+
+            fun readDistance(key: String): Int? {
+                val value = section[key] ?: return null
+
+                return (value as? Int)?.takeIf { it in 2..32 }
+                        ?: throw FaultyConfiguration("$key of map $mapID must be in range of 2 to 32: $value")
+            }
+
+            return WorldProfile(
+                    generator = generator,
+                    keepSpawnLoaded = section["keep-spawn-loaded"] as Boolean? ?: DEFAULT.keepSpawnLoaded,
+                    viewDistance = readDistance("view-distance"),
+                    simulationDistance = readDistance("simulation-distance")
+            )
+        }
+    }
+
+    /**
+     * Apply the generator to [creator].
+     */
+    internal fun apply(creator: WorldCreator) {
+        when (generator) {
+            Generator.VOID -> creator.generator(VoidGenerator()).generateStructures(false)
+            Generator.FLAT -> creator.type(WorldType.FLAT)
+        }
+    }
+
+    /**
+     * Apply spawn chunk setting and distances to the [world] whose chunks have been preloaded.
+     */
+    internal fun apply(world: World) {
+        world.keepSpawnInMemory = keepSpawnLoaded
+        simulationDistance?.let { world.viewDistance = it }
+        viewDistance?.let { world.noTickViewDistance = it }
+    }
+}
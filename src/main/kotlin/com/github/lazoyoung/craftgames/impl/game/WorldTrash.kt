@@ -0,0 +1,170 @@
+package com.github.lazoyoung.craftgames.impl.game
+
+import com.github.lazoyoung.craftgames.impl.Main
+import org.bukkit.Bukkit
+import java.io.IOException
+import java.nio.file.*
+import java.nio.file.attribute.BasicFileAttributes
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Deletes worlds in background.
+ *
+ * A world is renamed into the trash directory inside world container at once,
+ * and then deleted by a single thread at a limited rate so that it doesn't starve other I/O.
+ * Trash directory itself is the persistent queue: whatever is left there is deleted on next startup.
+ */
+class WorldTrash {
+    companion object {
+        /** Directory inside world container where worlds await deletion **/
+        private const val TRASH_DIR = ".craftgames-trash"
+
+        /** Paths to be deleted in order **/
+        private val queue = LinkedBlockingQueue<Path>()
+
+        private var worker: Thread? = null
+
+        private val trashDir: Path
+            get() = Bukkit.getWorldContainer().toPath().resolve(TRASH_DIR)
+
+        /**
+         * Queue the leftovers from previous runs: trash, and worlds of games that were never closed.
+         * This must be called once at startup, before any game is opened.
+         */
+        internal fun load() {
+            val label = Main.getConfig().worldLabel
+
+            Files.createDirectories(trashDir)
+            Files.newDirectoryStream(trashDir).use { stream -> stream.forEach { queue.add(it) } }
+
+            label?.let { "${it}_" }?.let { prefix ->
+                Bukkit.getWorldContainer().listFiles()?.forEach {
+                    val id = it.name.removePrefix(prefix)
+
+                    if (it.isDirectory && it.name.startsWith(prefix) && id.toIntOrNull() != null
+                            && Bukkit.getWorld(it.name) == null) {
+                        trash(it.toPath())
+                    }
+                }
+            }
+
+            if (queue.isNotEmpty()) {
+                Main.logger.info("Deleting ${queue.size} worlds left from previous run.")
+                start()
+            }
+        }
+
+        /**
+         * Move the directory at [path] into trash and delete it in background.
+         * Directory is deleted in place if it cannot be moved.
+         *
+         * @throws IllegalArgumentException is thrown if [path] is not a directory.
+         */
+        internal fun trash(path: Path) {
+            require(Files.isDirectory(path)) { "${path.fileName} is not a directory!" }
+
+            val target = try {
+                Files.createDirectories(trashDir)
+                Files.move(
+                        path, trashDir.resolve("${path.fileName}-${System.nanoTime()}"),
+                        StandardCopyOption.ATOMIC_MOVE
+                )
+            } catch (e: IOException) {
+                Main.logger.warning("Failed to move ${path.fileName} into trash: ${e.message}")
+                path
+            }
+
+            queue.add(target)
+            start()
+        }
+
+        /**
+         * Stop deleting. The rest remains in trash until next startup.
+         */
+        internal fun shutdown() {
+            synchronized(this) {
+                worker?.interrupt()
+                worker = null
+            }
+        }
+
+        private fun start() {
+            synchronized(this) {
+                if (worker?.isAlive == true) {
+                    return
+                }
+
+                worker = Thread(Runnable { work() }, "CraftGames-Trash").also {
+                    it.isDaemon = true
+                    it.start()
+                }
+            }
+        }
+
+        private fun work() {
+            try {
+                while (!Thread.currentThread().isInterrupted) {
+                    val path = queue.poll(30L, TimeUnit.SECONDS) ?: break
+
+                    try {
+                        delete(path)
+                    } catch (e: IOException) {
+                        e.printStackTrace()
+                        Main.logger.warning("Failed to delete ${path.fileName}.")
+                    }
+                }
+            } catch (e: InterruptedException) {
+                // Plugin is being disabled.
+            }
+
+            synchronized(this) {
+                if (worker === Thread.currentThread()) {
+                    worker = null
+                }
+            }
+
+            // Lost the race with trash() which saw this worker alive.
+            if (queue.isNotEmpty() && Main.instance.isEnabled) {
+                start()
+            }
+        }
+
+        /**
+         * Delete the directory at [root] file by file, not exceeding the rate defined in config.yml.
+         */
+        private fun delete(root: Path) {
+            val rate = Main.getConfig().trashDeleteRate
+            val startTime = System.currentTimeMillis()
+            var count = 0L
+
+            Files.walkFileTree(root, object : SimpleFileVisitor<Path>() {
+                override fun visitFile(file: Path, attrs: BasicFileAttributes): FileVisitResult {
+                    file.toFile().setWritable(true, true)
+                    Files.delete(file)
+                    count++
+
+                    if (rate > 0 && count % rate == 0L) {
+                        val ahead = count * 1000L / rate - (System.currentTimeMillis() - startTime)
+
+                        if (ahead > 0) {
+                            Thread.sleep(ahead)
+                        }
+                    }
+                    return FileVisitResult.CONTINUE
+                }
+
+                override fun postVisitDirectory(dir: Path, exc: IOException?): FileVisitResult {
+                    if (exc != null) {
+                        throw exc
+                    }
+
+                    Files.delete(dir)
+                    return FileVisitResult.CONTINUE
+                }
+            })
+
+            Main.logger.info("Deleted ${root.fileName}: $count files in ${System.currentTimeMillis() - startTime} ms.")
+        }
+    }
+}
@@ -126,9 +126,9 @@ class GameModuleService internal constructor(private val game: Game) : GameModul
     }
 
     override fun broadcast(message: String) {
-        game.getPlayers().forEach {
-            it.sendMessage(*TextComponent.fromLegacyText(message.replace('&', '\u00A7')))
-        }
+        val components = TextComponent.fromLegacyText(message.replace('&', '\u00A7'))
+
+        game.getPlayers().forEach { it.sendMessage(*components) }
     }
 
     override fun finishGame(winner: Team, timer: Timer) {
@@ -117,6 +117,11 @@ class LobbyModuleService internal constructor(private val game: Game) : LobbyMod
                 val count = game.getPlayerService().getLivingPlayers().size
 
                 if (count == 0) {
+                    if (game.standby) {
+                        // Wait for players in GamePool
+                        return
+                    }
+
                     game.forceStop(error = false)
                     this.cancel()
                     return
@@ -159,7 +164,7 @@ class LobbyModuleService internal constructor(private val game: Game) : LobbyMod
                                 game.start(null)
                             }
                         } catch (e: Exception) {
-                            game.forceStop(async = false, error = true)
+                            game.forceStop(error = true)
                             e.printStackTrace()
                         }
                     }
@@ -51,8 +51,8 @@ class MobModuleService internal constructor(private val game: Game) : MobModule,
 
     private data class SkinData(val uuid: String, val value: String, val signature: String)
 
-    internal var mobCap = Main.getConfig()?.getInt("optimization.mob-capacity", 100) ?: 100
-    private val maxAttempt = Main.getConfig()?.getInt("optimization.safezone-calculation.mob-throttle", 3) ?: 3
+    internal var mobCap = Main.getConfig().mobCapacity
+    private val maxAttempt = Main.getConfig().mobThrottle
     private val script = game.resource.mainScript
     private lateinit var apiHelper: Any
     private lateinit var spawnMethod: Method
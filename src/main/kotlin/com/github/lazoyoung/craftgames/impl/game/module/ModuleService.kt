@@ -25,14 +25,8 @@ class ModuleService internal constructor(val game: Game) : Module, Service {
     private val eventModule = EventModuleService()
 
     init {
-        try {
-            script.startLogging()
-            script.parse()
-            injectModules(script)
-        } catch (e: Exception) {
-            script.writeStackTrace(e)
-            game.forceStop(error = true)
-        }
+        // Main script is parsed in advance. See Game.openNew
+        injectModules(script)
     }
 
     internal fun injectModules(script: GameScript) {
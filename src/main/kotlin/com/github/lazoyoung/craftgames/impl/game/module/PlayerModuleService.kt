@@ -45,15 +45,15 @@ class PlayerModuleService internal constructor(private val game: Game) : PlayerM
     private var editorSpawn: CoordTag? = null
     private var spectatorSpawn: CoordTag? = null
     private val disguises = HashMap<UUID, Disguise>()
-    private val maxAttempt = Main.getConfig()?.getInt("optimization.safezone-calculation.player-throttle", 10) ?: 10
+    private val maxAttempt = Main.getConfig().playerThrottle
     private val script = game.resource.mainScript
 
     override fun getLivingPlayers(): List<Player> {
-        return game.getPlayers().filter { PlayerData.get(it) is GamePlayer }
+        return game.roster.get(PlayerType.PLAYER)
     }
 
     override fun getDeadPlayers(): List<Player> {
-        return game.getPlayers().filter { PlayerData.get(it) is Spectator }
+        return game.roster.get(PlayerType.SPECTATOR)
     }
 
     override fun getPlayersInside(areaTag: String, callback: Consumer<List<Player>>) {
@@ -65,7 +65,7 @@ class PlayerModuleService internal constructor(private val game: Game) : PlayerM
     }
 
     override fun isOnline(player: Player): Boolean {
-        return game.getPlayers().contains(player)
+        return game.roster.contains(player.uniqueId)
     }
 
     @Suppress("DEPRECATION")
@@ -282,8 +282,7 @@ class PlayerModuleService internal constructor(private val game: Game) : PlayerM
         val playerService = game.getPlayerService()
         val timer = respawnTimer[uid]?.clone()
                 ?: game.getGameService().respawnTimer.clone()
-        val gracePeriod = Main.getConfig()?.getLong("spawn-invincible", 60L)
-                ?: 60L
+        val gracePeriod = Main.getConfig().spawnInvincible
 
         player.gameMode = GameMode.SPECTATOR
 
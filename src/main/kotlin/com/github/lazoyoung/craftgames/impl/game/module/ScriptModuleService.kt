@@ -7,6 +7,7 @@ import com.github.lazoyoung.craftgames.api.script.ScriptCompiler
 import com.github.lazoyoung.craftgames.api.script.ScriptFactory
 import com.github.lazoyoung.craftgames.impl.Main
 import com.github.lazoyoung.craftgames.impl.game.Game
+import com.github.lazoyoung.craftgames.impl.script.groovy.GameScriptGroovy
 import org.bukkit.Bukkit
 import org.bukkit.configuration.file.YamlConfiguration
 import org.bukkit.entity.LivingEntity
@@ -41,7 +42,11 @@ class ScriptModuleService internal constructor(
         require(this.isPassiveScript(file)) {
             "$file is not a passive script."
         }
-        return ScriptFactory.get(file, mode ?: ScriptCompiler.getDefault())
+        return ScriptFactory.get(file, mode ?: ScriptCompiler.getDefault()).also {
+            if (it is GameScriptGroovy) {
+                it.cacheDir = resource.layout.scriptCacheDir
+            }
+        }
     }
 
     override fun repeat(counter: Int, interval: Timer, task: Runnable): BukkitTask {
@@ -9,6 +9,8 @@ import com.github.lazoyoung.craftgames.impl.Main
 import com.github.lazoyoung.craftgames.impl.exception.DependencyNotFound
 import com.github.lazoyoung.craftgames.impl.exception.MapNotFound
 import com.github.lazoyoung.craftgames.impl.exception.UndefinedCoordTag
+import com.github.lazoyoung.craftgames.impl.game.ChunkPreloader
+import com.github.lazoyoung.craftgames.impl.game.ChunkTicketManager
 import com.github.lazoyoung.craftgames.impl.game.Game
 import com.github.lazoyoung.craftgames.impl.game.player.PlayerData
 import com.github.lazoyoung.craftgames.impl.tag.coordinate.AreaCaptureService
@@ -205,7 +207,7 @@ class WorldModuleService(private val game: Game) : WorldModule, Service {
         val filePath = game.resource.layout.root.resolve(path)
         val file = filePath.toFile()
         val world = getWorld()
-        val maxBlocks = Main.getConfig()?.getInt("optimization.schematic-throttle", 10000) ?: 10000
+        val maxBlocks = Main.getConfig().schematicThrottle
         val format = ClipboardFormats.findByFile(file)
                 ?: throw IllegalArgumentException("Unable to resolve schematic file: $filePath")
         val ctag = game.resource.tagRegistry.getCoordTag(tag)
@@ -240,14 +242,31 @@ class WorldModuleService(private val game: Game) : WorldModule, Service {
         }
     }
 
-    fun getAreaNameAt(loc: Location): String? {
-        for (entry in game.map.areaRegistry) {
-            if (entry.value.firstOrNull { it.isInside(loc) } != null) {
-                return entry.key
-            }
+    override fun pinChunks(tag: String) {
+        getWorld()
+
+        val ctag = game.resource.tagRegistry.getCoordTag(tag)
+                ?: throw IllegalArgumentException("Tag $tag doesn't exist in this map.")
+        val keys = HashSet<Long>()
+
+        ctag.getCaptures(game.map.id).forEach { capture ->
+            ChunkPreloader.forEachChunk(capture) { keys.add(it) }
         }
 
-        return null
+        game.map.tickets?.hold(keys, ChunkTicketManager.script(tag))
+        script.printDebug("Pinned ${keys.size} chunks at $tag.")
+    }
+
+    override fun unpinChunks(tag: String) {
+        game.map.tickets?.release(ChunkTicketManager.script(tag))
+    }
+
+    override fun getHeldChunkCount(): Int {
+        return game.map.tickets?.size ?: 0
+    }
+
+    fun getAreaNameAt(loc: Location): String? {
+        return game.map.areaIndex.getAreaNameAt(loc)
     }
 
     /**
@@ -261,7 +280,7 @@ class WorldModuleService(private val game: Game) : WorldModule, Service {
     fun teleportSpawn(playerData: PlayerData, index: Int?): CompletableFuture<Boolean> {
         val scheduler = Bukkit.getScheduler()
         val player = playerData.getPlayer()
-        val gracePeriod = Main.getConfig()?.getLong("spawn.invincible", 60L) ?: 60L
+        val gracePeriod = Main.getConfig().spawnInvincible
         val future = game.getPlayerService().getSpawnpoint(playerData, index)
 
         return future.exceptionally { t ->
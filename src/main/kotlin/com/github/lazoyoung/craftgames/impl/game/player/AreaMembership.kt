@@ -0,0 +1,72 @@
+package com.github.lazoyoung.craftgames.impl.game.player
+
+import com.github.lazoyoung.craftgames.impl.game.AreaIndex
+import org.bukkit.Location
+import java.util.*
+
+/**
+ * Remembers the areas which a player is inside, so that areas are evaluated
+ * only when the player moves into another block.
+ */
+internal class AreaMembership {
+
+    /** Index which [areas] refers to **/
+    private var index: AreaIndex? = null
+
+    private var world: UUID? = null
+    private var blockX = 0
+    private var blockY = 0
+    private var blockZ = 0
+
+    /** IDs of the areas the player is inside **/
+    private var areas = BitSet()
+
+    /**
+     * Update the membership as the player arrives at [loc].
+     * Nothing is evaluated unless the block position has changed.
+     *
+     * State is updated before any callback, hence callbacks may safely move the player again.
+     *
+     * @param index Index of the areas at [loc], or null if there's no area.
+     * @param exit Called with the name of each area the player has left.
+     * @param enter Called with the name of each area the player has entered.
+     */
+    fun update(index: AreaIndex?, loc: Location, exit: (String) -> Unit, enter: (String) -> Unit) {
+        val worldID = loc.world?.uid
+        val x = loc.blockX
+        val y = loc.blockY
+        val z = loc.blockZ
+
+        if (index === this.index && worldID == world && x == blockX && y == blockY && z == blockZ) {
+            return
+        }
+
+        val lastIndex = this.index
+        val last = this.areas
+        val current = index?.getAreasAt(x, y, z) ?: BitSet()
+
+        this.index = index
+        this.world = worldID
+        this.blockX = x
+        this.blockY = y
+        this.blockZ = z
+        this.areas = current
+
+        if (index != null && index === lastIndex) {
+            val exited = last.clone() as BitSet
+            val entered = current.clone() as BitSet
+
+            exited.andNot(current)
+            entered.andNot(last)
+            index.getTags(exited).forEach(exit)
+            index.getTags(entered).forEach(enter)
+        } else {
+            // IDs of different indexes don't match. Compare by name instead.
+            val lastNames = lastIndex?.getTags(last) ?: emptyList()
+            val names = index?.getTags(current) ?: emptyList()
+
+            lastNames.minus(names).forEach(exit)
+            names.minus(lastNames).forEach(enter)
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package com.github.lazoyoung.craftgames.impl.game.player
 
 import com.github.lazoyoung.craftgames.api.ActionbarTask
+import com.github.lazoyoung.craftgames.api.PlayerType
 import com.github.lazoyoung.craftgames.api.TimeUnit
 import com.github.lazoyoung.craftgames.api.Timer
 import com.github.lazoyoung.craftgames.api.event.GameEditorSaveEvent
@@ -11,7 +12,11 @@ import com.github.lazoyoung.craftgames.impl.exception.MapNotFound
 import com.github.lazoyoung.craftgames.impl.game.Game
 import com.github.lazoyoung.craftgames.impl.game.GameMap
 import com.github.lazoyoung.craftgames.impl.game.GamePhase
-import com.github.lazoyoung.craftgames.impl.util.FileUtil
+import com.github.lazoyoung.craftgames.impl.game.GameResource
+import com.github.lazoyoung.craftgames.impl.game.MapStore
+import com.github.lazoyoung.craftgames.impl.game.TemplateCache
+import com.github.lazoyoung.craftgames.impl.game.TemplateSync
+import com.github.lazoyoung.craftgames.impl.util.ArchiveUtil
 import net.md_5.bungee.api.ChatColor
 import net.md_5.bungee.api.chat.ClickEvent
 import net.md_5.bungee.api.chat.ComponentBuilder
@@ -21,10 +26,10 @@ import org.bukkit.GameMode
 import org.bukkit.block.Block
 import org.bukkit.entity.Player
 import org.bukkit.event.block.Action
-import java.nio.file.AtomicMoveNotSupportedException
+import java.io.IOException
 import java.nio.file.Files
 import java.nio.file.Path
-import java.nio.file.StandardCopyOption
+import java.util.concurrent.CompletableFuture
 import java.util.function.BiConsumer
 import java.util.function.Consumer
 
@@ -43,23 +48,29 @@ class GameEditor private constructor(
     private var dialogActionbar: ActionbarTask? = null
 
     companion object {
+        /** Key: Game name and map ID, Value: Session being opened and the players waiting for it **/
+        private val opening = HashMap<Pair<String, String>, Pair<CompletableFuture<Void>, MutableList<Player>>>()
+
         /**
          * Make the player jump into editor mode for specific map.
+         * Players who ask for the same map while its session is being opened join that session.
          *
          * @param player who will edit the map
          * @param gameName Identifies the game in which the editor mode takes place.
          * @param mapID Identifies the map in which the editor mode takes place.
+         * @return A future which completes once the player joins the game.
+         * Game is opened in asynchronous fashion, therefore it may complete exceptionally
+         * with the exceptions thrown by [Game.openNew].
          * @throws GameNotFound
-         * @throws MapNotFound
          * @throws FaultyConfiguration
          * @throws RuntimeException is raised if plugin fails to write player's data.
          */
-        fun start(player: Player, gameName: String, mapID: String) {
+        fun start(player: Player, gameName: String, mapID: String): CompletableFuture<Void> {
             val pid = player.uniqueId
 
             if (registry.containsKey(pid)) {
                 player.sendMessage("\u00A7cYou're already in editor mode.")
-                return
+                return CompletableFuture.completedFuture(null)
             }
 
             val present = Game.find(gameName, true).firstOrNull { mapID == it.map.id }
@@ -70,18 +81,48 @@ class GameEditor private constructor(
                 mapID
             }
 
-            if (present == null) {
-                val game = Game.openNew(gameName, editMode = true, mapID = mapSel)
-                val instance = GameEditor(player, game)
-                registry[pid] = instance
-                instance.captureState()
-                game.joinEditor(instance)
-            } else {
+            if (present != null) {
                 val instance = GameEditor(player, present)
                 registry[pid] = instance
                 instance.captureState()
                 present.joinEditor(instance)
+                return CompletableFuture.completedFuture(null)
             }
+
+            val key = Pair(gameName, mapID)
+
+            opening[key]?.let { (future, players) ->
+                players.add(player)
+                return future
+            }
+
+            val players = mutableListOf(player)
+            val future = Game.openNew(gameName, editMode = true, mapID = mapSel).thenAccept { game ->
+                val editors = players.filter { !registry.containsKey(it.uniqueId) && it.isOnline }
+
+                if (editors.isEmpty()) {
+                    game.close()
+                    return@thenAccept
+                }
+
+                for (editor in editors) {
+                    try {
+                        val instance = GameEditor(editor, game)
+                        registry[editor.uniqueId] = instance
+                        instance.captureState()
+                        game.joinEditor(instance)
+                    } catch (e: RuntimeException) {
+                        e.printStackTrace()
+                        registry.remove(editor.uniqueId)
+                        editor.sendMessage("\u00A7cFailed to enter editor mode. See console for details.")
+                    }
+                }
+            }
+            val entry = Pair(future, players)
+
+            opening[key] = entry
+            future.whenComplete { _, _ -> opening.remove(key, entry) }
+            return future
         }
     }
 
@@ -159,7 +200,7 @@ class GameEditor private constructor(
         val scheduler = Bukkit.getScheduler()
         val plugin = Main.instance
         val source = game.map.worldPath
-        val targetOrigin = game.resource.mapRegistry.getMap(mapID)!!.directory
+        val template = game.resource.mapRegistry.getMap(mapID)!!
         val gameService = game.getGameService()
 
         // Call event
@@ -183,79 +224,67 @@ class GameEditor private constructor(
 
         // Save resources
         game.resource.saveToDisk()
+        GameResource.invalidate(game.name)
+        TemplateCache.invalidate(template)
 
         // Save world
         checkNotNull(game.map.world).save()
 
-        val target = targetOrigin.parent!!
-        val renameTo: Path
-
         if (source == null || !Files.isDirectory(source))
             throw RuntimeException("Unable to locate world files to save!")
 
-        try {
-            if (Files.isDirectory(targetOrigin)) {
-                FileUtil.deleteFileTree(targetOrigin)
+        scheduler.runTaskAsynchronously(plugin, Runnable {
+            val summary = try {
+                saveMap(source, template)
+            } catch (e: Exception) {
+                e.printStackTrace()
+                null
             }
 
-            renameTo = targetOrigin.fileName
-
-            fun cloneProcess(atomicMove: Boolean) {
-                val future = FileUtil.cloneFileTree(source, target, StandardCopyOption.REPLACE_EXISTING)
-
-                fun process(result: Boolean, t: Throwable?) {
-                    if (!result || t != null) {
-                        t?.printStackTrace()
-                        actionbar.clear()
-                        gameService.broadcast("&cFailed to save changes!")
-                        game.forceStop(error = true)
-                    } else {
-                        try {
-                            if (atomicMove) {
-                                Files.move(target.resolve(source.fileName), target.resolve(renameTo),
-                                        StandardCopyOption.ATOMIC_MOVE)
-                            } else {
-                                Files.move(target.resolve(source.fileName), target.resolve(renameTo),
-                                        StandardCopyOption.REPLACE_EXISTING)
-                            }
-                        } catch (e: Exception) {
-                            e.printStackTrace()
-                            actionbar.clear()
-                            gameService.broadcast("&cFailed to save changes!")
-                            game.forceStop(error = true)
-                            return
-                        }
-
-                        actionbar.clear()
-                        gameService.broadcast("&aChanges are saved!")
-                        informIncompleteTags(player)
-                        game.close()
-                    }
-                }
+            scheduler.runTask(plugin, Runnable {
+                actionbar.clear()
 
-                if (atomicMove) {
-                    future.handleAsync { result, t ->
-                        scheduler.runTask(plugin, Runnable { process(result, t) })
-                    }
+                if (summary == null) {
+                    gameService.broadcast("&cFailed to save changes!")
+                    game.forceStop(error = true)
                 } else {
-                    future.handle { result, t ->
-                        scheduler.runTask(plugin, Runnable { process(result, t) })
-                    }
+                    TemplateCache.invalidate(template)
+                    gameService.broadcast("&aChanges are saved! &7($summary)")
+                    informIncompleteTags(player)
+                    game.close()
                 }
+            })
+        })
+    }
+
+    /**
+     * Save the world at [source] into the [map] in the form it's installed from.
+     * This performs blocking I/O, thus it must not be called in main thread.
+     *
+     * @return Summary of the files written.
+     * @throws IOException Thrown if I/O process has failed.
+     */
+    private fun saveMap(source: Path, map: GameMap): String {
+        return when {
+            // Stored map is saved by storing the new files and replacing its index.
+            map.isStored() -> {
+                val report = MapStore.store(source, map.index)
+
+                MapStore.collect()
+                String.format("%.1f MB written, %.1f MB unchanged",
+                        report.writtenBytes / 1048576.0, report.sharedBytes / 1048576.0)
+            }
+            // Packed map is saved by replacing its archive.
+            map.isPacked() -> {
+                "${ArchiveUtil.pack(source, map.archive)} files packed"
             }
+            // Only changed files are written into template.
+            else -> {
+                val report = TemplateSync.save(source, map.directory)
 
-            // Clone map files to disk
-            scheduler.runTaskAsynchronously(plugin, Runnable {
-                try {
-                    cloneProcess(true)
-                } catch (e: AtomicMoveNotSupportedException) {
-                    cloneProcess(false)
-                    Main.logger.warning("Failed to process files in atomic move.")
-                }
-            })
-        } catch (e: Exception) {
-            actionbar.clear()
-            throw RuntimeException("Unable to clone world files.", e)
+                String.format("%.1f MB written, %.1f MB unchanged",
+                        report.writtenBytes / 1048576.0, report.skippedBytes / 1048576.0)
+            }
         }
     }
 
@@ -309,7 +338,7 @@ class GameEditor private constructor(
     }
 
     internal fun updateActionbar() {
-        val coopList = game.getPlayers().map { get(it) }
+        val coopList = game.roster.get(PlayerType.EDITOR).map { get(it) }
                 .filterIsInstance(GameEditor::class.java).shuffled()
 
         coopList.forEach { editor ->
@@ -1,5 +1,6 @@
 package com.github.lazoyoung.craftgames.impl.game.player
 
+import com.github.lazoyoung.craftgames.api.PlayerType
 import com.github.lazoyoung.craftgames.impl.exception.ConcurrentPlayerState
 import com.github.lazoyoung.craftgames.impl.game.Game
 import org.bukkit.GameMode
@@ -10,6 +11,9 @@ class GamePlayer private constructor(
         private val game: Game
 ): PlayerData(player, game, game.getGameService().defaultGameMode) {
 
+    /** Areas this player is inside **/
+    internal val areaMembership = AreaMembership()
+
     companion object {
         /**
          * @throws RuntimeException is raised if plugin fails to write player's data.
@@ -38,6 +42,7 @@ class GamePlayer private constructor(
             val player = getPlayer()
 
             Spectator.register(player, game, this)
+            game.roster.put(player, PlayerType.SPECTATOR)
             player.gameMode = GameMode.SPECTATOR
         } catch(e: RuntimeException) {
             e.printStackTrace()
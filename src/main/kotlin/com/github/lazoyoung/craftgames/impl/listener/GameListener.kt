@@ -10,7 +10,7 @@ class GameListener : Listener {
     fun onGameLeave(event: GameLeaveEvent) {
         val game = event.getGame()
 
-        if (game.players.isEmpty()) {
+        if (game.roster.size == 0) {
             game.close()
         }
     }
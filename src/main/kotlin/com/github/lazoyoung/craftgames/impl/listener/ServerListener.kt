@@ -5,9 +5,11 @@ import com.github.lazoyoung.craftgames.api.event.*
 import com.github.lazoyoung.craftgames.impl.Main
 import com.github.lazoyoung.craftgames.impl.game.Game
 import com.github.lazoyoung.craftgames.impl.game.GamePhase
+import com.github.lazoyoung.craftgames.impl.game.MatchmakingQueue
 import com.github.lazoyoung.craftgames.impl.game.player.*
 import org.bukkit.Bukkit
 import org.bukkit.GameMode
+import org.bukkit.Location
 import org.bukkit.attribute.Attribute
 import org.bukkit.entity.Mob
 import org.bukkit.entity.Player
@@ -24,6 +26,7 @@ import org.bukkit.event.inventory.InventoryAction
 import org.bukkit.event.inventory.InventoryClickEvent
 import org.bukkit.event.inventory.InventoryDragEvent
 import org.bukkit.event.player.*
+import org.bukkit.event.vehicle.VehicleMoveEvent
 import org.bukkit.event.world.WorldInitEvent
 import org.bukkit.inventory.PlayerInventory
 
@@ -31,18 +34,11 @@ class ServerListener : Listener {
 
     @EventHandler(priority = EventPriority.LOWEST)
     fun onWorldLoad(event: WorldInitEvent) {
-        for (game in Game.find()) {
-            val name = event.world.name
+        Game.indexWorld(event.world) ?: return
 
-            if (name == game.map.worldName) {
-                event.world.keepSpawnInMemory = false
-
-                Bukkit.getScheduler().runTaskLater(Main.instance, Runnable {
-                    Bukkit.getWorld(name)?.keepSpawnInMemory = true
-                }, 40L)
-                break
-            }
-        }
+        // Skip preparing spawn chunks. Chunks referred by tags are preloaded instead.
+        // Spawn is kept loaded afterwards if the profile says so. See WorldProfile.apply
+        event.world.keepSpawnInMemory = false
     }
 
     @EventHandler
@@ -158,29 +154,37 @@ class ServerListener : Listener {
         }
     }
 
+    // Areas are evaluated at MONITOR, once no other plugin can cancel the move.
     @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     fun onPlayerMove(event: PlayerMoveEvent) {
-        val player = event.player
-        val pdata = PlayerData.get(player) ?: return
+        val from = event.from
+        val to = event.to
 
-        if (pdata is GamePlayer && player.gameMode != GameMode.SPECTATOR) {
-            val worldModule = pdata.getGame().getWorldService()
-            val from = worldModule.getAreaNameAt(event.from)
-            val to = worldModule.getAreaNameAt(event.to)
+        // Turning head or moving within a block doesn't change areas.
+        if (from.blockX == to.blockX && from.blockY == to.blockY && from.blockZ == to.blockZ
+                && from.world == to.world) {
+            return
+        }
 
-            if (from == to)
-                return
+        updateAreas(event.player, to)
+    }
 
-            if (from != null) {
-                Bukkit.getPluginManager().callEvent(
-                        GameAreaExitEvent(pdata.getGame(), from, player)
-                )
-            }
+    @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
+    fun onPlayerTeleport(event: PlayerTeleportEvent) {
+        updateAreas(event.player, event.to)
+    }
+
+    @EventHandler(priority = EventPriority.MONITOR)
+    fun onPlayerRespawn(event: PlayerRespawnEvent) {
+        updateAreas(event.player, event.respawnLocation)
+    }
 
-            if (to != null) {
-                Bukkit.getPluginManager().callEvent(
-                        GameAreaEnterEvent(pdata.getGame(), to, player)
-                )
+    @EventHandler(priority = EventPriority.MONITOR)
+    fun onVehicleMove(event: VehicleMoveEvent) {
+        // Passengers don't trigger PlayerMoveEvent.
+        for (passenger in event.vehicle.passengers) {
+            if (passenger is Player) {
+                updateAreas(passenger, event.to)
             }
         }
     }
@@ -199,6 +203,7 @@ class ServerListener : Listener {
 
     @EventHandler
     fun onPlayerQuit(event: PlayerQuitEvent) {
+        MatchmakingQueue.dequeue(event.player)
         PlayerData.get(event.player)?.leaveGame()
     }
 
@@ -298,4 +303,23 @@ class ServerListener : Listener {
         }
     }
 
-}
\ No newline at end of file
+    /**
+     * Call [GameAreaExitEvent] and [GameAreaEnterEvent] for the areas
+     * which the [player] has left and entered by arriving at [loc].
+     */
+    private fun updateAreas(player: Player, loc: Location) {
+        val pdata = PlayerData.get(player) as? GamePlayer ?: return
+
+        if (player.gameMode == GameMode.SPECTATOR)
+            return
+
+        val game = pdata.getGame()
+        val index = if (loc.world == game.map.world) game.map.areaIndex else null
+
+        pdata.areaMembership.update(index, loc, exit = {
+            Bukkit.getPluginManager().callEvent(GameAreaExitEvent(game, it, player))
+        }, enter = {
+            Bukkit.getPluginManager().callEvent(GameAreaEnterEvent(game, it, player))
+        })
+    }
+}
@@ -5,13 +5,23 @@ import com.github.lazoyoung.craftgames.api.script.ScriptCompiler
 import com.github.lazoyoung.craftgames.api.script.ScriptFactory
 import com.github.lazoyoung.craftgames.impl.Main
 import groovy.lang.Binding
+import groovy.lang.GroovyClassLoader
 import groovy.lang.Script
 import groovy.transform.CompileStatic
-import groovy.util.GroovyScriptEngine
+import org.codehaus.groovy.control.CompilationUnit
+import org.codehaus.groovy.control.CompilerConfiguration
+import org.codehaus.groovy.control.Phases
 import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer
 import org.codehaus.groovy.control.customizers.ImportCustomizer
+import org.codehaus.groovy.runtime.InvokerHelper
 import java.io.*
 import java.net.URI
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import java.util.TreeSet
+import java.util.concurrent.ConcurrentHashMap
 
 class GameScriptGroovy(
         engine: ScriptFactory.Engine,
@@ -20,17 +30,58 @@ class GameScriptGroovy(
 ) : GameScript(engine, file, "^${file.name}$".toRegex()) {
 
     companion object {
-        internal val registry = HashMap<URI, GameScriptGroovy>()
+        internal val registry = ConcurrentHashMap<URI, GameScriptGroovy>()
+
+        /** Key: Script file, Value: Compiled script of the latest source **/
+        private val classCache = ConcurrentHashMap<URI, CompiledScript>()
+
+        private const val MAIN_INDEX = "main"
     }
 
-    private var groovy = GroovyScriptEngine(arrayOf(file.toURI().toURL()))
+    /**
+     * Directory in which compiled classes are persisted. Nothing is persisted if it's null.
+     */
+    internal var cacheDir: Path? = null
+
     private val bindings = Binding()
     private val imports = ImportCustomizer()
+    private val importKeys = TreeSet<String>()
     private var script: Script? = null
     private var printWriter: PrintWriter? = null
 
+    private class CompiledScript(val key: String, val mainClass: Class<out Script>)
+
+    /**
+     * Defines classes of a compiled script. Each script owns a loader so that its classes can be unloaded.
+     */
+    private class CachedClassLoader(
+            parent: ClassLoader,
+            /** Key: Class name, Value: Bytecode **/
+            private val classes: Map<String, ByteArray>
+    ) : ClassLoader(parent) {
+
+        override fun findClass(name: String): Class<*> {
+            val bytes = classes[name] ?: throw ClassNotFoundException(name)
+            return defineClass(name, bytes, 0, bytes.size)
+        }
+    }
+
     init {
         registry[file.toURI()] = this
+        addImports(true,
+                "com.github.lazoyoung.craftgames.api",
+                "com.github.lazoyoung.craftgames.api.event",
+                "com.github.lazoyoung.craftgames.api.script",
+                "com.github.lazoyoung.craftgames.api.shopkeepers",
+                "com.github.lazoyoung.craftgames.api.tag.coordinate",
+                "com.github.lazoyoung.craftgames.api.tag.item"
+        )
+        addImport("Module", "com.github.lazoyoung.craftgames.api.module.Module")
+        addImport("BukkitTask", "org.bukkit.scheduler.BukkitTask")
+        addImport("ChatColor", "org.bukkit.ChatColor")
+        addImport("Material", "org.bukkit.Material")
+        addImport("CommandSender", "org.bukkit.command.CommandSender")
+        addImport("EntityType", "org.bukkit.entity.EntityType")
     }
 
     override fun bind(arg: String, obj: Any) {
@@ -59,30 +110,30 @@ class GameScriptGroovy(
         printWriter?.flush()
     }
 
+    /**
+     * Compiles the script unless the same source has been compiled before
+     * under the same compiler mode and imports.
+     * Other scripts in the same directory are part of the source, as the script may refer to them.
+     *
+     * Compiled classes are kept in memory and persisted into [cacheDir].
+     */
     override fun parse() {
-        super.parse()
+        val source = readSource()
+        val uri = file.toURI()
+        val key = getCacheKey(source)
+        var compiled = classCache[uri]?.takeIf { it.key == key }
 
-        if (mode == ScriptCompiler.STATIC) {
-            val extensionClass = GroovyASTExtension::class.qualifiedName!!
-            val transform = ASTTransformationCustomizer(CompileStatic::class.java)
-            transform.setAnnotationParameters(mapOf(Pair("extensions", extensionClass)))
-            groovy.config.addCompilationCustomizers(transform)
+        if (compiled == null) {
+            val classes = readCache(key) ?: compile(source).also { writeCache(key, it) }
+            val mainName = classes[MAIN_INDEX]?.toString(Charsets.UTF_8)
+                    ?: error("Compiled script doesn't have a main class: ${file.name}")
+            val classLoader = CachedClassLoader(javaClass.classLoader, classes.filterKeys { it != MAIN_INDEX })
+
+            compiled = CompiledScript(key, classLoader.loadClass(mainName).asSubclass(Script::class.java))
+            classCache[uri] = compiled
         }
 
-        imports.addStarImports("com.github.lazoyoung.craftgames.api")
-        imports.addStarImports("com.github.lazoyoung.craftgames.api.event")
-        imports.addStarImports("com.github.lazoyoung.craftgames.api.script")
-        imports.addStarImports("com.github.lazoyoung.craftgames.api.shopkeepers")
-        imports.addStarImports("com.github.lazoyoung.craftgames.api.tag.coordinate")
-        imports.addStarImports("com.github.lazoyoung.craftgames.api.tag.item")
-        imports.addImport("Module", "com.github.lazoyoung.craftgames.api.module.Module")
-        imports.addImport("BukkitTask", "org.bukkit.scheduler.BukkitTask")
-        imports.addImport("ChatColor", "org.bukkit.ChatColor")
-        imports.addImport("Material", "org.bukkit.Material")
-        imports.addImport("CommandSender", "org.bukkit.command.CommandSender")
-        imports.addImport("EntityType", "org.bukkit.entity.EntityType")
-        groovy.config.addCompilationCustomizers(imports)
-        script = groovy.createScript(file.name, bindings)
+        script = InvokerHelper.createScript(compiled.mainClass, bindings)
     }
 
     override fun run() {
@@ -108,8 +159,135 @@ class GameScriptGroovy(
     fun addImports(star: Boolean, vararg imports: String) {
         if (star) {
             this.imports.addStarImports(*imports)
+            imports.forEach { importKeys.add("$it.*") }
         } else {
             this.imports.addImports(*imports)
+            importKeys.addAll(imports)
+        }
+    }
+
+    private fun addImport(alias: String, className: String) {
+        imports.addImport(alias, className)
+        importKeys.add("$className as $alias")
+    }
+
+    /**
+     * Compile [source] into bytecode.
+     *
+     * @return Key: Class name, Value: Bytecode. Name of the main class is mapped by [MAIN_INDEX].
+     */
+    private fun compile(source: String): Map<String, ByteArray> {
+        val config = CompilerConfiguration()
+
+        if (mode == ScriptCompiler.STATIC) {
+            val extensionClass = GroovyASTExtension::class.qualifiedName!!
+            val transform = ASTTransformationCustomizer(CompileStatic::class.java)
+            transform.setAnnotationParameters(mapOf(Pair("extensions", extensionClass)))
+            config.addCompilationCustomizers(transform)
+        }
+
+        config.addCompilationCustomizers(imports)
+        config.classpathList = listOf(file.parentFile.path)
+
+        val classLoader = GroovyClassLoader(javaClass.classLoader, config)
+        val unit = CompilationUnit(config, null, classLoader)
+        val classes = LinkedHashMap<String, ByteArray>()
+        val sourceUnit = unit.addSource(file.toURI().toString(), source)
+
+        // Scripts referred by this one are resolved in its directory and compiled along with it.
+        unit.compile(Phases.CLASS_GENERATION)
+        unit.classes.forEach { classes[it.name] = it.bytes }
+
+        val mainClass = sourceUnit.ast.classes.firstOrNull { it.isScript }?.name
+                ?: error("Script class is not found in ${file.name}")
+
+        classes[MAIN_INDEX] = mainClass.toByteArray(Charsets.UTF_8)
+        printDebug("Script is compiled: ${file.name}")
+        return classes
+    }
+
+    private fun getCacheKey(source: String): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+
+        digest.update(Main.instance.description.version.toByteArray(Charsets.UTF_8))
+        digest.update(mode.name.toByteArray(Charsets.UTF_8))
+        importKeys.forEach { digest.update(it.toByteArray(Charsets.UTF_8)) }
+        digest.update(source.toByteArray(Charsets.UTF_8))
+        readDependencies().forEach { (path, bytes) ->
+            digest.update(path.toByteArray(Charsets.UTF_8))
+            digest.update(bytes)
+        }
+        return digest.digest().joinToString("") { String.format("%02x", it) }
+    }
+
+    /**
+     * Read other Groovy sources under the directory of this script, which it may depend on.
+     *
+     * @return Key: Relative path, Value: Source
+     */
+    private fun readDependencies(): Map<String, ByteArray> {
+        val root = file.parentFile
+
+        return root.walkTopDown()
+                .filter { it.isFile && it.extension == "groovy" && it != file }
+                .map { it.relativeTo(root).path to it }
+                .sortedBy { it.first }
+                .associate { (path, source) -> path to source.readBytes() }
+    }
+
+    private fun getCachePath(key: String): Path? {
+        return cacheDir?.resolve("${file.nameWithoutExtension}-$key")
+    }
+
+    private fun readCache(key: String): Map<String, ByteArray>? {
+        val dir = getCachePath(key) ?: return null
+        val classes = HashMap<String, ByteArray>()
+
+        if (!Files.isRegularFile(dir.resolve(MAIN_INDEX))) {
+            return null
+        }
+
+        try {
+            Files.newDirectoryStream(dir).use {
+                it.forEach { entry ->
+                    val name = entry.fileName.toString()
+                    classes[name.removeSuffix(".class")] = Files.readAllBytes(entry)
+                }
+            }
+        } catch (e: IOException) {
+            e.printStackTrace()
+            Main.logger.warning("Failed to read compiled script: ${file.name}")
+            return null
+        }
+
+        return classes
+    }
+
+    private fun writeCache(key: String, classes: Map<String, ByteArray>) {
+        val dir = getCachePath(key) ?: return
+        val parent = dir.parent!!
+        val prefix = "${file.nameWithoutExtension}-"
+
+        try {
+            Files.createDirectories(parent)
+            val tmpDir = Files.createTempDirectory(parent, ".$prefix")
+
+            classes.forEach { (name, bytes) ->
+                val fileName = if (name == MAIN_INDEX) name else "$name.class"
+                Files.write(tmpDir.resolve(fileName), bytes)
+            }
+
+            // Discard classes compiled from previous source
+            val pattern = Regex("${Regex.escape(prefix)}[0-9a-f]{64}")
+
+            Files.newDirectoryStream(parent) { pattern.matches(it.fileName.toString()) }.use {
+                it.forEach { entry -> entry.toFile().deleteRecursively() }
+            }
+
+            Files.move(tmpDir, dir, StandardCopyOption.ATOMIC_MOVE)
+        } catch (e: IOException) {
+            e.printStackTrace()
+            Main.logger.warning("Failed to persist compiled script: ${file.name}")
         }
     }
-}
\ No newline at end of file
+}
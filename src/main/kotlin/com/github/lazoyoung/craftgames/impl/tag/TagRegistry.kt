@@ -31,6 +31,12 @@ class TagRegistry internal constructor(
     private val ctagStorage = HashMap<String, CoordTag>()
     private val itagStorage = HashMap<String, ItemTag>()
 
+    /** Names of coordinate tags removed since they were last written into [ctagConfig] **/
+    private val removedCoordTags = HashSet<String>()
+
+    /** Whether [ctagStorage] has changes which are not written into [ctagConfig] **/
+    private var ctagDirty = false
+
     constructor(gameName: String) : this(GameLayout(gameName))
 
     init {
@@ -69,12 +75,13 @@ class TagRegistry internal constructor(
             "This tag already exists: $name"
         }
 
-        ctagConfig.set(name.plus(".mode"), mode.label)
+        val tag = CoordTag(name, mode, this, LinkedList(), false)
+
         ctagConfig.createSection(name.plus(".captures.").plus(mapID))
-        reloadCoordTags(null)
-        return checkNotNull(getCoordTag(name)) {
-            "Failed to create coordinate tag."
-        }
+        ctagStorage[name] = tag
+        removedCoordTags.remove(name)
+        markDirty()
+        return tag
     }
 
     /**
@@ -106,17 +113,44 @@ class TagRegistry internal constructor(
     }
 
     internal fun saveToDisk() {
+        if (ctagDirty) {
+            removedCoordTags.forEach { ctagConfig.set(it, null) }
+            removedCoordTags.clear()
+            ctagStorage.values.forEach { it.write(ctagConfig) }
+            ctagDirty = false
+        }
+
         ctagConfig.save(ctagFile)
         itagConfig.save(itagFile)
     }
 
     /**
-     * Reload [ctagStorage].
+     * Flag that coordinate tags have changed in memory. They're written into config upon [saveToDisk].
+     */
+    internal fun markDirty() {
+        ctagDirty = true
+    }
+
+    /**
+     * Forget the coordinate [tag]. It's deleted from config upon [saveToDisk].
+     */
+    internal fun unregister(tag: CoordTag) {
+        if (ctagStorage[tag.name] === tag) {
+            ctagStorage.remove(tag.name)
+            removedCoordTags.add(tag.name)
+            markDirty()
+        }
+    }
+
+    /**
+     * Reload [ctagStorage] by parsing the whole config. Changes not saved are discarded.
      *
      * @param tag Reference which is going to be updated to reflect changes.
      */
     internal fun reloadCoordTags(tag: CoordTag?) {
         ctagStorage.clear()
+        removedCoordTags.clear()
+        ctagDirty = false
 
         try {
             for (name in ctagConfig.getKeys(false)) {
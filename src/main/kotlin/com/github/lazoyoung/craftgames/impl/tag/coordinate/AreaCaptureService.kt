@@ -135,10 +135,8 @@ class AreaCaptureService(
 
         val scheduler = Bukkit.getScheduler()
         val plugin = Main.instance
-        val resolutionPath = "rendering.capture-display.area-particles.resolution"
-        val distancePath = "rendering.capture-display.area-particles.distance"
-        val res = Main.getConfig()?.getInt(resolutionPath, 2) ?: 2
-        val distance = Main.getConfig()?.getInt(distancePath, 30) ?: 30
+        val res = Main.getConfig().areaParticleResolution
+        val distance = Main.getConfig().areaParticleDistance
         val interval = Timer(TimeUnit.SECOND, 2)
         val builder = Particle.END_ROD.builder()
                 .count(1)
@@ -24,8 +24,7 @@ class BlockCaptureService(
         val block = getBlock(world)
         val blockData = block.blockData.clone()
         val loc = block.location.add(0.5, 0.1, 0.5)
-        val configPath = "rendering.capture-display.falling-block.material-replacement.".plus(block.type.name)
-        val material = Material.getMaterial(Main.getConfig()?.getString(configPath) ?: "")
+        val material = Main.getConfig().fallingBlockReplacement[block.type]
         val fallingBlock = if (material != null) {
             world.spawnFallingBlock(loc, material.createBlockData())
         } else {
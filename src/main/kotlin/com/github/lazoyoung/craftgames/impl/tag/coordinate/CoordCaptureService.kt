@@ -5,6 +5,7 @@ import com.github.lazoyoung.craftgames.api.event.GameEditorSaveEvent
 import com.github.lazoyoung.craftgames.api.tag.coordinate.CoordCapture
 import com.github.lazoyoung.craftgames.api.tag.coordinate.CoordTag
 import com.github.lazoyoung.craftgames.impl.Main
+import com.github.lazoyoung.craftgames.impl.tag.TagRegistry
 import org.bukkit.Bukkit
 import org.bukkit.World
 import org.bukkit.entity.Entity
@@ -22,13 +23,17 @@ import java.util.concurrent.CompletableFuture
 
 abstract class CoordCaptureService(
         override val mapID: String,
-        override val index: Int?
+        index: Int?
 ) : CoordCapture {
+    /** Position of this capture among those of the same tag and map. It's shifted as preceding ones are removed. **/
+    final override var index: Int? = index
+        internal set
+
     private var displayTask: BukkitTask? = null
 
     override fun teleport(player: Player, callback: Runnable) {
         val world = player.world
-        val maxAttempt = Main.getConfig()?.getInt("optimization.safezone-calculation.player-throttle", 10) ?: 10
+        val maxAttempt = Main.getConfig().playerThrottle
         val future = when (this) {
             is AreaCaptureService -> this.toLocation(player.world, maxAttempt)
             is BlockCaptureService -> CompletableFuture.completedFuture(this.toLocation(world))
@@ -49,24 +54,13 @@ abstract class CoordCaptureService(
     }
 
     /**
-     * Add this capture into the tag. You will have to manually save the config.
+     * Add this capture into the tag. [TagRegistry.saveToDisk] should be used to save changes.
      *
      * @param tag a tag for which this capture is saved.
-     * @throws RuntimeException Thrown if mapID is undefined for this instance.
+     * @throws IllegalStateException is raised if the tag has been removed.
      */
     internal fun add(tag: CoordTag) {
-        try {
-            val registry = tag.registry
-            val key = registry.getCoordCaptureStreamKey(tag.name, mapID)
-            val stream = registry.getCoordCaptureStream(tag.name, mapID)
-                    .toMutableList()
-
-            stream.add(serialize())
-            registry.ctagConfig.set(key, stream)
-            registry.reloadCoordTags(tag)
-        } catch (e: NullPointerException) {
-            throw IllegalArgumentException(e)
-        }
+        tag.addCapture(this)
     }
 
     /**
@@ -131,7 +125,7 @@ abstract class CoordCaptureService(
 
     protected abstract fun destroyBorder(entity: Entity)
 
-    protected abstract fun serialize(): String
+    internal abstract fun serialize(): String
 
     private fun terminateDisplay(entity: Entity, listener: Listener) {
         destroyBorder(entity)
@@ -0,0 +1,139 @@
+package com.github.lazoyoung.craftgames.impl.util
+
+import com.github.lazoyoung.craftgames.impl.Main
+import com.github.lazoyoung.craftgames.impl.game.TemplateSync
+import java.io.BufferedInputStream
+import java.io.BufferedOutputStream
+import java.io.IOException
+import java.nio.file.*
+import java.util.stream.Collectors
+import java.util.zip.CRC32
+import java.util.zip.Deflater
+import java.util.zip.ZipEntry
+import java.util.zip.ZipInputStream
+import java.util.zip.ZipOutputStream
+
+/**
+ * Packs a world directory into a single archive, and installs it back.
+ *
+ * Archives are in ZIP format, which carries an index and compression per entry.
+ * Region files are already compressed by Minecraft, so they're stored as is.
+ */
+class ArchiveUtil {
+    companion object {
+        /** File extension of map archives **/
+        const val EXTENSION = ".cgmap"
+
+        private const val BUFFER_SIZE = 1 shl 20
+
+        /**
+         * Pack the content of [source] directory into [archive].
+         * The archive is written aside and then moved in place, so it's never seen incomplete.
+         *
+         * @return Number of files packed.
+         * @throws IllegalArgumentException Thrown if source does not indicate a directory
+         * @throws IOException Thrown if I/O process has failed.
+         */
+        fun pack(source: Path, archive: Path): Int {
+            require(Files.isDirectory(source)) { "source is not a directory!" }
+
+            val startTime = System.currentTimeMillis()
+            val temp = archive.resolveSibling("${archive.fileName}.tmp")
+            val files = Files.walk(source).use { stream ->
+                stream.filter { Files.isRegularFile(it) && !TemplateSync.isExcluded(it) }
+                        .sorted()
+                        .collect(Collectors.toList())
+            }
+
+            try {
+                ZipOutputStream(BufferedOutputStream(Files.newOutputStream(temp), BUFFER_SIZE)).use { output ->
+                    output.setLevel(Deflater.BEST_SPEED)
+
+                    for (file in files) {
+                        val entry = ZipEntry(source.relativize(file).joinToString("/"))
+
+                        if (file.fileName.toString().endsWith(".mca")) {
+                            val size = Files.size(file)
+
+                            entry.method = ZipEntry.STORED
+                            entry.size = size
+                            entry.compressedSize = size
+                            entry.crc = checksum(file)
+                        } else {
+                            entry.method = ZipEntry.DEFLATED
+                        }
+
+                        output.putNextEntry(entry)
+                        Files.copy(file, output)
+                        output.closeEntry()
+                    }
+                }
+
+                Files.move(temp, archive, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+            } finally {
+                Files.deleteIfExists(temp)
+            }
+
+            Main.logger.info("Packed ${files.size} files into ${archive.fileName} " +
+                    "(${Files.size(archive) / 1024} KB) in ${System.currentTimeMillis() - startTime} ms.")
+            return files.size
+        }
+
+        /**
+         * Install the content of [archive] into [target] directory, reading the archive from start to end.
+         *
+         * @return Number of bytes written.
+         * @throws IOException Thrown if I/O process has failed, or the archive has an illegal entry.
+         */
+        fun unpack(archive: Path, target: Path): Long {
+            val startTime = System.currentTimeMillis()
+            val root = Files.createDirectories(target).toAbsolutePath().normalize()
+            var bytes = 0L
+            var count = 0
+
+            ZipInputStream(BufferedInputStream(Files.newInputStream(archive), BUFFER_SIZE)).use { input ->
+                while (true) {
+                    val entry = input.nextEntry ?: break
+                    val path = root.resolve(entry.name).normalize()
+
+                    if (!path.startsWith(root)) {
+                        throw IOException("Illegal entry in ${archive.fileName}: ${entry.name}")
+                    }
+
+                    if (entry.isDirectory) {
+                        Files.createDirectories(path)
+                    } else {
+                        Files.createDirectories(path.parent)
+                        bytes += Files.copy(input, path, StandardCopyOption.REPLACE_EXISTING)
+                        count++
+                    }
+                }
+            }
+
+            val elapsed = (System.currentTimeMillis() - startTime).coerceAtLeast(1L)
+
+            Main.logger.info(String.format(
+                    "Unpacked %s: %d files, %.1f MB in %d ms (%.1f MB/s)",
+                    archive.fileName, count, bytes / 1048576.0, elapsed, bytes / 1048.576 / elapsed
+            ))
+            return bytes
+        }
+
+        private fun checksum(file: Path): Long {
+            val crc = CRC32()
+            val buffer = ByteArray(65536)
+
+            Files.newInputStream(file).use {
+                while (true) {
+                    val read = it.read(buffer)
+
+                    if (read < 0) {
+                        break
+                    }
+                    crc.update(buffer, 0, read)
+                }
+            }
+            return crc.value
+        }
+    }
+}
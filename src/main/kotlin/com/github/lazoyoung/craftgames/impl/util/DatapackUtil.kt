@@ -101,11 +101,11 @@ class DatapackUtil {
         }
 
         fun getInternalPackName(): String {
-            return Main.getConfig()?.getString("datapack.internal-pack-name") ?: "craftgames"
+            return Main.getConfig().datapackInternalName
         }
 
         private fun getFormatVersion(): Int {
-            val format = Main.getConfig()?.getString("datapack.format-version")
+            val format = Main.getConfig().datapackFormatVersion
 
             return if (format == null || format == "auto") {
                 val version = Bukkit.getServer().javaClass.`package`.name.split(".")[3]
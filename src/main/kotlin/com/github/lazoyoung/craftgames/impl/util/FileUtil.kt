@@ -1,92 +1,342 @@
 package com.github.lazoyoung.craftgames.impl.util
 
 import com.github.lazoyoung.craftgames.impl.Main
+import com.github.lazoyoung.craftgames.impl.game.TemplateSync
 import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
 import java.nio.file.*
 import java.nio.file.attribute.BasicFileAttributes
+import java.security.MessageDigest
 import java.util.*
-import java.util.concurrent.CompletableFuture
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.function.Supplier
 
 class FileUtil {
+
+    enum class CloneMethod {
+        /** Every file shares its data with the source until either side is modified **/
+        REFLINK,
+        /** Every file is a physical copy **/
+        COPY
+    }
+
     companion object {
+        /** Number of files copied in parallel **/
+        private val copyThreads = Runtime.getRuntime().availableProcessors().coerceIn(2, 8)
+
+        /** Becomes false once the file system turns out not to support reflink **/
+        @Volatile
+        private var reflinkSupported = true
+
+        /** Errors reported by cp if the file system can never reflink the source **/
+        private val reflinkUnsupported = listOf(
+                "Operation not supported", "Invalid cross-device link", "Inappropriate ioctl for device"
+        )
+
+        /** Bounded pool of threads which perform file I/O **/
+        private var ioExecutor: ExecutorService? = null
+
         /**
          * Clones the whole content inside the source directory.
+         *
+         * Directories are created in current thread, whereas files are copied in parallel by I/O threads.
+         * The first failure cancels every copy in progress. So does cancellation of the returned future.
+         * Files specific to a running world or a template directory are not cloned. See [TemplateSync.isExcluded]
+         *
          * @param source The root of the content to be cloned.
          * @param target Path to target directory.
          * @param options You may define the [copying behavior][CopyOption] if desired.
-         * @return a [CompletableFuture] that is completed with result (Boolean).
+         * @return a [CompletableFuture] that is completed with result (Boolean) in one of I/O threads.
          * @throws IllegalArgumentException Thrown if source does not indicate a directory
          * @throws SecurityException Thrown if system denied access to any file.
          * @throws IOException Thrown if copy-paste I/O process has failed.
          */
         fun cloneFileTree(source: Path, target: Path, vararg options: CopyOption?): CompletableFuture<Boolean> {
-            val sourcePath = source.normalize()
             val future = CompletableFuture<Boolean>()
 
+            transferFileTree(source, target, options, future, true)
+            return future
+        }
+
+        /**
+         * Clones the whole content inside the source directory, sharing its data with the clone if possible.
+         *
+         * Reflink (copy-on-write clone of every file) is tried first, so that writes into the clone never reach the source.
+         * Files are copied if the file system doesn't support it.
+         * Hard links are never used, because the world would write through them into the source.
+         * Files specific to a running world or a template directory are not cloned. See [TemplateSync.isExcluded]
+         *
+         * @param source The root of the content to be cloned.
+         * @param target Path to target directory.
+         * @return a [CompletableFuture] that is completed with the [method][CloneMethod] in effect.
+         * @throws IllegalArgumentException Thrown if source does not indicate a directory
+         * @throws SecurityException Thrown if system denied access to any file.
+         * @throws IOException Thrown if copy-paste I/O process has failed.
+         */
+        fun shareFileTree(source: Path, target: Path): CompletableFuture<CloneMethod> {
+            val future = CompletableFuture<CloneMethod>()
+
+            if (!Files.isDirectory(source))
+                throw IllegalArgumentException("source is not a directory!")
+
+            if (!reflinkSupported) {
+                transferFileTree(source, target, emptyArray(), future, CloneMethod.COPY)
+                return future
+            }
+
+            CompletableFuture.supplyAsync(Supplier { reflink(source.normalize(), target) }, getExecutor())
+                    .whenComplete { result, t ->
+                        try {
+                            when {
+                                future.isDone -> return@whenComplete
+                                t == null && result -> future.complete(CloneMethod.REFLINK)
+                                t == null -> {
+                                    reflinkSupported = false
+                                    Main.logger.info("Reflink is not supported. Falling back to copy.")
+                                    transferFileTree(source, target, emptyArray(), future, CloneMethod.COPY)
+                                }
+                                else -> {
+                                    // Failure may be transient, hence reflink is tried again next time.
+                                    Main.logger.warning("Reflink failed: ${(t as? CompletionException)?.cause?.message ?: t.message}")
+                                    transferFileTree(source, target, emptyArray(), future, CloneMethod.COPY)
+                                }
+                            }
+                        } catch (e: Exception) {
+                            future.completeExceptionally(e)
+                        }
+                    }
+            return future
+        }
+
+        /**
+         * Copy files from [source] into [target] and complete the [future] by [result].
+         */
+        private fun <T> transferFileTree(
+                source: Path,
+                target: Path,
+                options: Array<out CopyOption?>,
+                future: CompletableFuture<T>,
+                result: T
+        ) {
+            val sourcePath = source.normalize()
+            val files = ArrayList<Pair<Path, Path>>()
+            val startTime = System.currentTimeMillis()
+
             if (!Files.isDirectory(sourcePath))
                 throw IllegalArgumentException("source is not a directory!")
             if (!Files.isDirectory(target)) {
                 Files.createDirectory(target)
             }
 
+            fun resolveTarget(path: Path): Path {
+                return when (sourcePath.parent) {
+                    null -> target.resolve(path.toString())
+                    else -> target.resolve(sourcePath.parent.relativize(path).toString())
+                }
+            }
+
             Files.walkFileTree(sourcePath, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Int.MAX_VALUE,
                     object : SimpleFileVisitor<Path>() {
 
-                override fun preVisitDirectory(dir: Path?, attr: BasicFileAttributes?): FileVisitResult {
-                    if (dir == null)
-                        return FileVisitResult.CONTINUE
+                override fun preVisitDirectory(dir: Path, attr: BasicFileAttributes): FileVisitResult {
+                    val targetDir = resolveTarget(dir)
 
-                    val targetDir = when (sourcePath.parent) {
-                        null -> target.resolve(dir.toString())
-                        else -> target.resolve(sourcePath.parent.relativize(dir).toString())
-                    }
-                    Main.logger.info("Copying directory: ${dir.fileName} -> $targetDir")
-                    try {
-                        if (targetDir.toFile().listFiles().isNullOrEmpty())
-                            Files.copy(dir, targetDir, *options)
-                    } catch (exc: FileAlreadyExistsException) {
-                        if (!Files.isDirectory(targetDir)) {
-                            Main.logger.warning("Not a valid target: $targetDir")
-                        }
-                        future.completeExceptionally(exc)
+                    if (!Files.isDirectory(targetDir)) {
+                        Files.createDirectories(targetDir)
                     }
                     return FileVisitResult.CONTINUE
                 }
 
-                override fun visitFile(file: Path?, attrs: BasicFileAttributes?): FileVisitResult {
-                    if (file != null) {
-                        try {
-                            val targetPath = when (sourcePath.parent) {
-                                null -> target.resolve(file.toString())
-                                else -> target.resolve(sourcePath.parent.relativize(file).toString())
-                            }
-                            Main.logger.info("Copying file: ${file.fileName} -> ${targetPath.normalize()}")
-                            Files.copy(file, targetPath, *options)
-                        } catch (exc: Exception) {
-                            future.completeExceptionally(exc)
-                            Main.logger.warning("Failed to copy file: ${file.fileName}")
-                        }
+                override fun visitFile(file: Path, attrs: BasicFileAttributes): FileVisitResult {
+                    if (!TemplateSync.isExcluded(file)) {
+                        files.add(Pair(file, resolveTarget(file)))
                     }
                     return FileVisitResult.CONTINUE
                 }
 
                 override fun visitFileFailed(file: Path, exc: IOException): FileVisitResult {
-                    future.completeExceptionally(exc)
-                    return FileVisitResult.TERMINATE
+                    throw exc
                 }
+            })
 
-                override fun postVisitDirectory(dir: Path, exc: IOException?): FileVisitResult {
-                    if (exc != null) {
-                        future.completeExceptionally(exc)
-                    } else if (dir == sourcePath) {
-                        future.complete(true)
+            if (files.isEmpty()) {
+                future.complete(result)
+                return
+            }
+
+            val executor = getExecutor()
+            val remaining = AtomicInteger(files.size)
+            val bytes = AtomicLong(0L)
+            val tasks = ArrayList<Future<*>>(files.size)
+
+            for ((file, targetFile) in files) {
+                val task = Runnable {
+                    if (future.isDone) {
+                        return@Runnable
                     }
 
-                    return super.postVisitDirectory(dir, exc)
+                    try {
+                        bytes.addAndGet(copyFile(file, targetFile, options))
+                    } catch (e: Exception) {
+                        if (future.completeExceptionally(e)) {
+                            Main.logger.warning("Failed to copy file: $file")
+                        }
+                        return@Runnable
+                    }
+
+                    if (remaining.decrementAndGet() == 0) {
+                        val elapsed = (System.currentTimeMillis() - startTime).coerceAtLeast(1L)
+                        val megabytes = bytes.get() / 1048576.0
+
+                        Main.logger.info(String.format(
+                                "Cloned %s: %d files, %.1f MB in %d ms (%.0f files/s, %.1f MB/s)",
+                                sourcePath.fileName, files.size, megabytes, elapsed,
+                                files.size * 1000.0 / elapsed, megabytes * 1000.0 / elapsed
+                        ))
+                        future.complete(result)
+                    }
                 }
-            })
 
-            return future
+                try {
+                    tasks.add(executor.submit(task))
+                } catch (e: RejectedExecutionException) {
+                    future.completeExceptionally(e)
+                    break
+                }
+            }
+
+            // Abort the rest upon failure or cancellation.
+            future.whenComplete { _, t ->
+                if (t != null) {
+                    tasks.forEach { it.cancel(true) }
+                }
+            }
+        }
+
+        /**
+         * Clone [source] directory into [target] directory by reflink, using cp of GNU coreutils.
+         * Partial result is removed if any file is not cloned.
+         *
+         * @return true if every file is cloned, false if the file system doesn't support reflink.
+         * @throws IOException Thrown if cp has failed for any other reason. Its output is the message.
+         */
+        private fun reflink(source: Path, target: Path): Boolean {
+            if (!System.getProperty("os.name").startsWith("Linux")) {
+                return false
+            }
+
+            val outcome = target.resolve(source.fileName.toString())
+            val process = ProcessBuilder("cp", "-R", "--reflink=always", source.toString(), target.toString())
+                    .redirectErrorStream(true)
+                    .start()
+            val output = process.inputStream.bufferedReader().use { it.readText() }.trim()
+
+            if (process.waitFor() == 0) {
+                if (output.isNotEmpty()) {
+                    Main.logger.info("cp: $output")
+                }
+
+                TemplateSync.excludedFiles.forEach { Files.deleteIfExists(outcome.resolve(it)) }
+                return true
+            }
+
+            if (Files.isDirectory(outcome)) {
+                deleteFileTree(outcome)
+            }
+
+            if (reflinkUnsupported.any { output.contains(it) }) {
+                Main.logger.info("cp: $output")
+                return false
+            }
+            throw IOException(output.ifEmpty { "cp exited with code ${process.exitValue()}" })
+        }
+
+        /**
+         * Shut down the I/O threads. Copies in progress are interrupted.
+         */
+        internal fun shutdown() {
+            synchronized(this) {
+                ioExecutor?.shutdownNow()
+                ioExecutor = null
+            }
+        }
+
+        private fun getExecutor(): ExecutorService {
+            synchronized(this) {
+                return ioExecutor ?: Executors.newFixedThreadPool(copyThreads, object : ThreadFactory {
+                    private val counter = AtomicInteger(0)
+
+                    override fun newThread(r: Runnable): Thread {
+                        val thread = Thread(r, "CraftGames-IO-${counter.incrementAndGet()}")
+                        thread.isDaemon = true
+                        return thread
+                    }
+                }).also { ioExecutor = it }
+            }
+        }
+
+        /**
+         * Copy a regular file by channel transfer, which lets the kernel copy the bytes if supported.
+         *
+         * @return Number of bytes copied.
+         * @throws IOException Thrown if the file is not copied as a whole.
+         */
+        private fun copyFile(source: Path, target: Path, options: Array<out CopyOption?>): Long {
+            val openOptions = if (options.contains(StandardCopyOption.REPLACE_EXISTING)) {
+                EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)
+            } else {
+                EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW)
+            }
+
+            var position = 0L
+
+            FileChannel.open(source, StandardOpenOption.READ).use { input ->
+                FileChannel.open(target, openOptions).use { output ->
+                    val size = input.size()
+
+                    while (position < size) {
+                        val count = input.transferTo(position, size - position, output)
+
+                        if (count <= 0) {
+                            break
+                        }
+                        position += count
+                    }
+
+                    if (position != size) {
+                        throw IOException("Copied $position out of $size bytes: $source")
+                    }
+                }
+            }
+
+            if (options.contains(StandardCopyOption.COPY_ATTRIBUTES)) {
+                Files.setLastModifiedTime(target, Files.getLastModifiedTime(source))
+            }
+            return position
+        }
+
+        /**
+         * Compute SHA-1 digest of the content of [file].
+         *
+         * @return Digest in hexadecimal.
+         * @throws IOException Thrown if the file cannot be read.
+         */
+        fun digest(file: Path): String {
+            val digest = MessageDigest.getInstance("SHA-1")
+            val buffer = ByteBuffer.allocate(1 shl 16)
+
+            FileChannel.open(file, StandardOpenOption.READ).use { channel ->
+                while (channel.read(buffer) >= 0) {
+                    buffer.flip()
+                    digest.update(buffer)
+                    buffer.clear()
+                }
+            }
+
+            return digest.digest().joinToString("") { String.format("%02x", it) }
         }
 
         /**
@@ -100,14 +350,12 @@ class FileUtil {
                 override fun postVisitDirectory(dir: Path, exc: IOException?): FileVisitResult {
                     dir.toFile().setWritable(true, true)
                     Files.delete(dir)
-                    Main.logger.info("Delete folder: $dir")
                     return FileVisitResult.CONTINUE
                 }
 
                 override fun visitFile(file: Path, attrs: BasicFileAttributes): FileVisitResult {
                     file.toFile().setWritable(true, true)
                     Files.delete(file)
-                    Main.logger.info("Delete file: $file")
                     return FileVisitResult.CONTINUE
                 }
 
@@ -8,21 +8,14 @@ class LocationUtil {
 
     companion object {
         fun getExitFallback(currentWorld: String): Location {
-            val fallback = Main.getConfig()?.getConfigurationSection("exit-policy.fallback")
-            val fWorld = fallback?.getString("world")
-            var world = if (fWorld != null) {
-                Bukkit.getWorld(fWorld)
+            val fallback = Main.getConfig().exitFallback
+            var world = if (fallback != null) {
+                Bukkit.getWorld(fallback.world)
             } else {
                 null
             }
             val loc = if (world != null && fallback != null) {
-                val fX = fallback.getDouble("x")
-                val fY = fallback.getDouble("y")
-                val fZ = fallback.getDouble("z")
-                val fYaw = fallback.getDouble("yaw").toFloat()
-                val fPitch = fallback.getDouble("pitch").toFloat()
-
-                Location(world, fX, fY, fZ, fYaw, fPitch)
+                Location(world, fallback.x, fallback.y, fallback.z, fallback.yaw, fallback.pitch)
             } else {
                 world = Bukkit.getWorlds().filter { it.name != currentWorld }.random()
                 world.spawnLocation